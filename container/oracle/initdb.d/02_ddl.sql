@@ -244,6 +244,8 @@ CREATE TABLE JAWS_OWNER.NOTIFICATION_HISTORY
     CONSTRAINT NOTIFICATION_HISTORY_CK2 CHECK (ACTIVE_OVERRIDE IN ('Disabled', 'Filtered', 'Masked', 'OnDelayed', 'OffDelayed', 'Shelved', 'Latched'))
 );
 
+CREATE INDEX JAWS_OWNER.NOTIFICATION_HISTORY_OFFSET_IDX ON JAWS_OWNER.NOTIFICATION_HISTORY (OFFSET);
+
 CREATE TABLE JAWS_OWNER.ACTIVE_HISTORY
 (
     NAME                 VARCHAR2(64 CHAR) NOT NULL,
@@ -278,6 +280,27 @@ CREATE TABLE JAWS_OWNER.SUPPRESSED_HISTORY
     CONSTRAINT SUPPRESSED_HISTORY_AK1 UNIQUE (NAME, SUPPRESSED_END)
 );
 
+CREATE TABLE JAWS_OWNER.NOTIFICATION_CHECKPOINT
+(
+    NAME                 VARCHAR2(64 CHAR) NOT NULL,
+    OFFSET               INTEGER NOT NULL,
+    UPDATED              TIMESTAMP(3) WITH LOCAL TIME ZONE NOT NULL,
+    CONSTRAINT NOTIFICATION_CHECKPOINT_PK PRIMARY KEY (NAME)
+);
+
+CREATE GLOBAL TEMPORARY TABLE JAWS_OWNER.NOTIFICATION_STAGE
+(
+    NAME                 VARCHAR2(64 CHAR) NOT NULL,
+    STATE                VARCHAR2(64 CHAR) NOT NULL,
+    SINCE                TIMESTAMP(0) WITH LOCAL TIME ZONE NOT NULL,
+    ACTIVE_OVERRIDE      VARCHAR2(32 CHAR) NULL,
+    ACTIVATION_TYPE      VARCHAR2(64 CHAR) NOT NULL,
+    ACTIVATION_NOTE      VARCHAR2(128 CHAR) NULL,
+    ACTIVATION_SEVR      VARCHAR2(32 CHAR) NULL,
+    ACTIVATION_STAT      VARCHAR2(32 CHAR) NULL,
+    ACTIVATION_ERROR     VARCHAR2(128 CHAR) NULL
+) ON COMMIT DELETE ROWS;
+
 -- Audit Tables
 CREATE TABLE JAWS_OWNER.APPLICATION_REVISION_INFO
 (
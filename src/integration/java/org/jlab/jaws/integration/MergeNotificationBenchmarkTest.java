@@ -0,0 +1,98 @@
+package org.jlab.jaws.integration;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.naming.NamingException;
+import org.jlab.jaws.business.service.BatchNotificationService;
+import org.jlab.jaws.business.service.BatchNotificationService.MergeMode;
+import org.jlab.jaws.business.service.NotificationRow;
+import org.jlab.jaws.business.util.OracleUtil;
+import org.jlab.jaws.entity.*;
+import org.jlab.kafka.eventsource.EventSourceRecord;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Compares the BATCH (row by row MERGE ... FROM DUAL) and STAGED (one set-based MERGE from
+ * NOTIFICATION_STAGE) NOTIFICATION merge modes at several batch sizes. Each batch updates rows
+ * merged by the batch before, as in steady state, and times are printed rather than asserted.
+ */
+public class MergeNotificationBenchmarkTest {
+  private static final String PREFIX = "MergeBenchmark";
+  private static final int[] BATCH_SIZES = {100, 1000, 10000};
+  private static final int ITERATIONS = 5;
+
+  @Before
+  public void setup() throws SQLException, NamingException {
+    new TestJndiContextFactory();
+    new TestOracleDataSource();
+  }
+
+  @After
+  public void teardown() throws SQLException {
+    Connection con = null;
+    PreparedStatement stmt = null;
+
+    try {
+      con = OracleUtil.getConnection();
+      stmt = con.prepareStatement("delete from jaws_owner.notification where name like ?");
+      stmt.setString(1, PREFIX + "%");
+      stmt.executeUpdate();
+    } finally {
+      OracleUtil.close(stmt, con);
+    }
+  }
+
+  @Test
+  public void doTest() throws SQLException {
+    for (int batchSize : BATCH_SIZES) {
+      for (MergeMode mode : MergeMode.values()) {
+        BatchNotificationService service = new BatchNotificationService(mode);
+
+        // Warm up, and insert the rows the timed iterations update
+        service.mergeNotifications(rows(batchSize, 0));
+
+        long start = System.nanoTime();
+        for (int i = 1; i <= ITERATIONS; i++) {
+          service.mergeNotifications(rows(batchSize, i));
+        }
+        long end = System.nanoTime();
+
+        System.out.printf(
+            "%-6s batchSize %5d: %8.1f ms per batch%n",
+            mode, batchSize, (end - start) / 1e6 / ITERATIONS);
+      }
+    }
+  }
+
+  private List<NotificationRow> rows(int count, int iteration) {
+    List<EventSourceRecord<String, EffectiveNotification>> records = new ArrayList<>(count);
+    long timestamp = 1000L * iteration;
+
+    for (int i = 0; i < count; i++) {
+      AlarmActivationUnion activation = null;
+      AlarmState state = AlarmState.Normal;
+
+      if ((i + iteration) % 2 == 0) {
+        EPICSActivation epics = new EPICSActivation();
+        epics.setSevr(SevrEnum.MAJOR);
+        epics.setStat(StatEnum.HIHI);
+        activation = new AlarmActivationUnion(epics);
+        state = AlarmState.Active;
+      }
+
+      records.add(
+          new EventSourceRecord<>(
+              PREFIX + i,
+              new EffectiveNotification(activation, null, state),
+              (long) iteration * count + i,
+              timestamp));
+    }
+
+    return NotificationRow.decode(records);
+  }
+}
@@ -0,0 +1,178 @@
+package org.jlab.jaws.integration;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.naming.NamingException;
+import org.jlab.jaws.business.service.BatchNotificationService;
+import org.jlab.jaws.business.service.NotificationRow;
+import org.jlab.jaws.business.util.OracleUtil;
+import org.jlab.jaws.entity.AlarmState;
+import org.jlab.jaws.entity.EffectiveNotification;
+import org.jlab.kafka.eventsource.EventSourceRecord;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Replaying notifications must not duplicate history: NOTIFICATION_HISTORY inserts skip offsets
+ * already present, and writeBatch skips history at or before the NOTIFICATION_CHECKPOINT offset.
+ *
+ * <p>Uses offsets far beyond any real topic and alarm names of its own, and removes the checkpoint
+ * row before and after each test.
+ */
+public class NotificationCheckpointTest {
+  private static final long BASE_OFFSET = 1_000_000_000L;
+  private static final String NAME_PREFIX = "NotificationCheckpointTest";
+
+  private final BatchNotificationService service = new BatchNotificationService();
+
+  @Before
+  public void setup() throws SQLException, NamingException {
+    new TestJndiContextFactory();
+    new TestOracleDataSource();
+
+    cleanup();
+  }
+
+  @After
+  public void teardown() throws SQLException {
+    cleanup();
+  }
+
+  private void cleanup() throws SQLException {
+    execute(
+        "delete from jaws_owner.notification_checkpoint where name = ?",
+        BatchNotificationService.CHECKPOINT_NAME);
+    execute("delete from jaws_owner.notification_history where name like ?", NAME_PREFIX + "%");
+    execute("delete from jaws_owner.active_history where name like ?", NAME_PREFIX + "%");
+    execute("delete from jaws_owner.suppressed_history where name like ?", NAME_PREFIX + "%");
+    execute("delete from jaws_owner.notification where name like ?", NAME_PREFIX + "%");
+  }
+
+  private void execute(String sql, String param) throws SQLException {
+    Connection con = null;
+    PreparedStatement stmt = null;
+
+    try {
+      con = OracleUtil.getConnection();
+      stmt = con.prepareStatement(sql);
+      stmt.setString(1, param);
+      stmt.executeUpdate();
+    } finally {
+      OracleUtil.close(stmt, con);
+    }
+  }
+
+  private long countHistory(long fromOffset, long toOffset) throws SQLException {
+    Connection con = null;
+    PreparedStatement stmt = null;
+    ResultSet rs = null;
+
+    try {
+      con = OracleUtil.getConnection();
+      stmt =
+          con.prepareStatement(
+              "select count(*) from jaws_owner.notification_history "
+                  + "where name like ? and offset between ? and ?");
+      stmt.setString(1, NAME_PREFIX + "%");
+      stmt.setLong(2, fromOffset);
+      stmt.setLong(3, toOffset);
+      rs = stmt.executeQuery();
+      rs.next();
+
+      return rs.getLong(1);
+    } finally {
+      OracleUtil.close(rs, stmt, con);
+    }
+  }
+
+  /** Alternate Active and Normal for two alarms, one row per offset from BASE_OFFSET. */
+  private static List<NotificationRow> rows(int count) {
+    List<EventSourceRecord<String, EffectiveNotification>> records = new ArrayList<>();
+
+    for (int i = 0; i < count; i++) {
+      long offset = BASE_OFFSET + i;
+      AlarmState state = (i / 2) % 2 == 0 ? AlarmState.Active : AlarmState.Normal;
+
+      records.add(
+          new EventSourceRecord<>(
+              NAME_PREFIX + (i % 2),
+              new EffectiveNotification(null, null, state),
+              offset,
+              offset * 1000));
+    }
+
+    return NotificationRow.decode(records);
+  }
+
+  @Test
+  public void replayedHistoryInsertIsSkipped() throws SQLException {
+    List<NotificationRow> rows = rows(6);
+
+    service.insertNotificationHistory(rows);
+    service.insertNotificationHistory(rows);
+
+    assertEquals(6, countHistory(BASE_OFFSET, BASE_OFFSET + 5));
+  }
+
+  @Test
+  public void writeBatchSavesCheckpoint() throws SQLException {
+    service.writeBatch(rows(6));
+
+    assertEquals(BASE_OFFSET + 5, service.getCheckpoint());
+    assertEquals(6, countHistory(BASE_OFFSET, BASE_OFFSET + 5));
+  }
+
+  @Test
+  public void writeBatchSkipsHistoryAtOrBeforeCheckpoint() throws SQLException {
+    service.saveCheckpoint(BASE_OFFSET + 2);
+
+    service.writeBatch(rows(6));
+
+    assertEquals(0, countHistory(BASE_OFFSET, BASE_OFFSET + 2));
+    assertEquals(3, countHistory(BASE_OFFSET + 3, BASE_OFFSET + 5));
+    assertEquals(BASE_OFFSET + 5, service.getCheckpoint());
+  }
+
+  @Test
+  public void replayedBatchAddsNoHistory() throws SQLException {
+    List<NotificationRow> rows = rows(6);
+
+    service.writeBatch(rows);
+    service.writeBatch(rows);
+
+    assertEquals(6, countHistory(BASE_OFFSET, BASE_OFFSET + 5));
+    assertEquals(BASE_OFFSET + 5, service.getCheckpoint());
+  }
+
+  @Test
+  public void writeBatchHoldsCheckpointAtMax() throws SQLException {
+    service.writeBatch(rows(6), BASE_OFFSET + 1);
+
+    assertEquals(6, countHistory(BASE_OFFSET, BASE_OFFSET + 5));
+    assertEquals(BASE_OFFSET + 1, service.getCheckpoint());
+  }
+
+  @Test
+  public void checkpointNeverMovesBack() throws SQLException {
+    service.saveCheckpoint(BASE_OFFSET + 5);
+    service.saveCheckpoint(BASE_OFFSET + 2);
+
+    assertEquals(BASE_OFFSET + 5, service.getCheckpoint());
+
+    // Saving again, even an older offset, refreshes the time a warm restart checks
+    assertEquals(BASE_OFFSET + 5, service.getCheckpoint(60));
+  }
+
+  @Test
+  public void noCheckpoint() throws SQLException {
+    assertEquals(-1, service.getCheckpoint());
+    assertEquals(-1, service.getCheckpoint(60));
+  }
+}
@@ -0,0 +1,170 @@
+package org.jlab.jaws.business.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.jlab.jaws.business.session.NotificationFacade;
+import org.jlab.jaws.entity.*;
+import org.jlab.jaws.persistence.model.BinaryState;
+import org.jlab.jaws.persistence.model.SuppressedState;
+import org.jlab.kafka.eventsource.EventSourceRecord;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures producing the values bound by the four notification writers (the NOTIFICATION merge and
+ * the three history writers) for a Kafka batch. "perWriter" decodes each record in every writer, as
+ * the writers did before NotificationRow; "shared" decodes each record once and has every writer
+ * read the row. JDBC binding and the database round trips are the same either way and not included.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NotificationDecodeBenchmark {
+  private static final int WRITERS = 4;
+
+  @Param({"100", "1000", "10000"})
+  public int batchSize;
+
+  private List<EventSourceRecord<String, EffectiveNotification>> records;
+
+  @Setup
+  public void setup() {
+    AlarmState[] states = AlarmState.values();
+    records = new ArrayList<>(batchSize);
+
+    for (int i = 0; i < batchSize; i++) {
+      AlarmActivationUnion union = null;
+
+      switch (i % 4) {
+        case 0:
+          EPICSActivation epics = new EPICSActivation();
+          epics.setSevr(SevrEnum.MAJOR);
+          epics.setStat(StatEnum.HIHI);
+          union = new AlarmActivationUnion(epics);
+          break;
+        case 1:
+          NoteActivation note = new NoteActivation();
+          note.setNote("Operator note " + i);
+          union = new AlarmActivationUnion(note);
+          break;
+        case 2:
+          ChannelErrorActivation error = new ChannelErrorActivation();
+          error.setError("Never Connected");
+          union = new AlarmActivationUnion(error);
+          break;
+        default:
+          // Not active
+      }
+
+      records.add(
+          new EventSourceRecord<>(
+              "alarm" + i,
+              new EffectiveNotification(union, new AlarmOverrideSet(), states[i % states.length]),
+              i,
+              1700000000000L + i));
+    }
+  }
+
+  @Benchmark
+  public void perWriter(Blackhole blackhole) {
+    for (int w = 0; w < WRITERS; w++) {
+      for (EventSourceRecord<String, EffectiveNotification> record : records) {
+        AlarmState alarmState = record.getValue().getState();
+        AlarmActivationUnion union = record.getValue().getActivation();
+
+        String activationType = "NotActive";
+        String note = null;
+        String sevr = null;
+        String stat = null;
+        String error = null;
+
+        if (union != null) {
+          if (union.getUnion() instanceof EPICSActivation) {
+            activationType = "EPICS";
+            EPICSActivation epics = (EPICSActivation) union.getUnion();
+            sevr = epics.getSevr().name();
+            stat = epics.getStat().name();
+          } else if (union.getUnion() instanceof NoteActivation) {
+            activationType = "Note";
+            note = ((NoteActivation) union.getUnion()).getNote();
+          } else if (union.getUnion() instanceof ChannelErrorActivation) {
+            activationType = "ChannelError";
+            error = ((ChannelErrorActivation) union.getUnion()).getError();
+          } else if (union.getUnion() instanceof Activation) {
+            activationType = "Simple";
+          }
+        }
+
+        blackhole.consume(record.getKey());
+        blackhole.consume(new java.sql.Date(record.getTimestamp()));
+        blackhole.consume(activationType);
+        blackhole.consume(note);
+        blackhole.consume(sevr);
+        blackhole.consume(stat);
+        blackhole.consume(error);
+
+        // The state derived column(s) each writer binds
+        switch (w) {
+          case 0:
+            blackhole.consume(BinaryState.fromAlarmState(alarmState).name());
+            OverriddenAlarmType override = NotificationFacade.overrideFromAlarmState(alarmState);
+            blackhole.consume(override == null ? null : override.name());
+            break;
+          case 1:
+            blackhole.consume(
+                BinaryState.Normal == BinaryState.fromAlarmState(alarmState) ? "Y" : "N");
+            break;
+          case 2:
+            blackhole.consume(
+                SuppressedState.NOT_SUPPRESSED == SuppressedState.fromAlarmState(alarmState)
+                    ? "Y"
+                    : "N");
+            blackhole.consume(AlarmState.NormalOneShotShelved == alarmState ? "Y" : "N");
+            break;
+          default:
+            blackhole.consume(BinaryState.fromAlarmState(alarmState).name());
+            override = NotificationFacade.overrideFromAlarmState(alarmState);
+            blackhole.consume(override == null ? null : override.name());
+        }
+      }
+    }
+  }
+
+  @Benchmark
+  public void shared(Blackhole blackhole) {
+    List<NotificationRow> rows = NotificationRow.decode(records);
+
+    for (int w = 0; w < WRITERS; w++) {
+      for (NotificationRow row : rows) {
+        blackhole.consume(row.getName());
+        blackhole.consume(row.getSince());
+        blackhole.consume(row.getActivationType());
+        blackhole.consume(row.getNote());
+        blackhole.consume(row.getSevr());
+        blackhole.consume(row.getStat());
+        blackhole.consume(row.getError());
+
+        switch (w) {
+          case 0:
+            blackhole.consume(row.getState());
+            blackhole.consume(row.getActiveOverride());
+            break;
+          case 1:
+            blackhole.consume(row.getNormal());
+            break;
+          case 2:
+            blackhole.consume(row.getUnsuppressed());
+            blackhole.consume(row.getOneshot());
+            break;
+          default:
+            blackhole.consume(row.getState());
+            blackhole.consume(row.getActiveOverride());
+        }
+      }
+    }
+  }
+}
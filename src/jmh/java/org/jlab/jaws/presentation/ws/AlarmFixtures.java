@@ -0,0 +1,129 @@
+package org.jlab.jaws.presentation.ws;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.jlab.jaws.entity.*;
+import org.jlab.kafka.eventsource.EventSourceRecord;
+
+/** Synthetic EffectiveAlarm records so the SSE encoding path can be measured without Kafka. */
+public final class AlarmFixtures {
+  private static final String[] LOCATIONS = {
+    "Injector",
+    "North Linac",
+    "South Linac",
+    "East Arc",
+    "West Arc",
+    "Hall A",
+    "Hall B",
+    "Hall C",
+    "Hall D",
+    "BSY",
+    "CHL",
+    "LERF"
+  };
+
+  private AlarmFixtures() {}
+
+  /**
+   * Create alarm records with the given activation / override shape.
+   *
+   * @param shape One of "epics", "note", "channelError", or "overrides" (an EPICS activation with
+   *     every override type set)
+   * @param count The number of records
+   * @return The records, with sequential offsets
+   */
+  public static List<EventSourceRecord<String, EffectiveAlarm>> alarms(String shape, int count) {
+    List<EventSourceRecord<String, EffectiveAlarm>> records = new ArrayList<>(count);
+
+    for (int i = 0; i < count; i++) {
+      String name = "alarm" + i;
+
+      EffectiveAlarm value = new EffectiveAlarm();
+      value.setRegistration(registration(i));
+      value.setNotification(notification(shape, i));
+
+      records.add(new EventSourceRecord<>(name, value, i, 1700000000000L + i));
+    }
+
+    return records;
+  }
+
+  private static EffectiveRegistration registration(int i) {
+    AlarmAction action = new AlarmAction();
+    action.setSystem("System" + (i % 40));
+    action.setPriority(AlarmPriority.values()[i % AlarmPriority.values().length]);
+    action.setFilterable(i % 5 != 0);
+    action.setLatchable(i % 3 == 0);
+    action.setRationale("Synthetic rationale for benchmarking the SSE encoding path");
+    action.setCorrectiveaction("Synthetic corrective action; call the on-call expert");
+    action.setOndelayseconds(i % 7 == 0 ? 5L : null);
+    action.setOffdelayseconds(null);
+
+    Alarm alarm = new Alarm();
+    alarm.setAction("Action" + (i % 200));
+    alarm.setSource(new EPICSSource("IOC" + (i % 300) + ":PV" + i + ":STAT"));
+    alarm.setLocation(
+        Arrays.asList(LOCATIONS[i % LOCATIONS.length], LOCATIONS[(i + 1) % LOCATIONS.length]));
+    alarm.setDevice("DEV" + (i % 500));
+    alarm.setScreencommand("/cs/certified/apps/screen" + (i % 50) + ".edl");
+
+    EffectiveRegistration registration = new EffectiveRegistration();
+    registration.setAction(action);
+    registration.setAlarm(alarm);
+
+    return registration;
+  }
+
+  private static EffectiveNotification notification(String shape, int i) {
+    AlarmActivationUnion activation = new AlarmActivationUnion();
+    AlarmOverrideSet overrides = new AlarmOverrideSet();
+    AlarmState state = AlarmState.Active;
+
+    switch (shape) {
+      case "epics":
+        activation.setUnion(epics());
+        break;
+      case "note":
+        NoteActivation note = new NoteActivation();
+        note.setNote("Operator note " + i);
+        activation.setUnion(note);
+        break;
+      case "channelError":
+        ChannelErrorActivation error = new ChannelErrorActivation();
+        error.setError("Never Connected");
+        activation.setUnion(error);
+        break;
+      case "overrides":
+        activation.setUnion(epics());
+
+        OnDelayedOverride onDelayed = new OnDelayedOverride();
+        onDelayed.setExpiration(1700000000000L);
+        OffDelayedOverride offDelayed = new OffDelayedOverride();
+        offDelayed.setExpiration(1700000000000L);
+
+        overrides.setDisabled(new DisabledOverride("Disabled for maintenance"));
+        overrides.setFiltered(new FilteredOverride("Hall A down"));
+        overrides.setLatched(new LatchedOverride());
+        overrides.setMasked(new MaskedOverride());
+        overrides.setOnDelayed(onDelayed);
+        overrides.setOffDelayed(offDelayed);
+        overrides.setShelved(
+            new ShelvedOverride(
+                true, 1700000000000L, ShelvedReason.values()[0], "Shelved until fixed"));
+        state = AlarmState.NormalDisabled;
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown shape: " + shape);
+    }
+
+    return new EffectiveNotification(activation, overrides, state);
+  }
+
+  private static EPICSActivation epics() {
+    EPICSActivation epics = new EPICSActivation();
+    epics.setSevr(SevrEnum.MAJOR);
+    epics.setStat(StatEnum.HIHI);
+    return epics;
+  }
+}
@@ -0,0 +1,75 @@
+package org.jlab.jaws.presentation.ws;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.jlab.jaws.entity.EffectiveAlarm;
+import org.jlab.kafka.eventsource.EventSourceRecord;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures encoding a batch of alarm records into SSE event data the way
+ * SSE.Subscription.sendRecords does: split into events of at most maxBatchRecords, each encoded
+ * with the profile's encoder. Queueing and writing to the sink are not included.
+ *
+ * <p>With cached=false every record is serialized (a client alone on a topic); with cached=true
+ * records are served from the encoder's cache (every client after the first).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SendRecordsBenchmark {
+  private static final int MAX_BATCH_RECORDS = 1000;
+
+  @Param({"full", "slim", "compact"})
+  public String profile;
+
+  @Param({"1", "100", "30000"})
+  public int batchSize;
+
+  @Param({"epics", "note", "channelError", "overrides"})
+  public String shape;
+
+  @Param({"false", "true"})
+  public boolean cached;
+
+  private final SSE.KeyConverter<String> keyConverter = key -> key;
+  private BatchEncoder encoder;
+  private List<EventSourceRecord<String, EffectiveAlarm>> records;
+
+  @Setup
+  public void setup() {
+    SSE sse = new SSE();
+    int maxCached = cached ? batchSize : 0;
+
+    switch (profile) {
+      case "full":
+        encoder = SSE.createEncoder(EffectiveAlarm.class, sse.EFFECTIVE_ALARM_MIXINS, maxCached);
+        break;
+      case "slim":
+        encoder =
+            SSE.createEncoder(EffectiveAlarm.class, sse.SLIM_EFFECTIVE_ALARM_MIXINS, maxCached);
+        break;
+      case "compact":
+        encoder = new CompactAlarmEncoder(maxCached);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown profile: " + profile);
+    }
+
+    records = AlarmFixtures.alarms(shape, batchSize);
+  }
+
+  @Benchmark
+  public void sendRecords(Blackhole blackhole) {
+    for (int i = 0; i < records.size(); i = i + MAX_BATCH_RECORDS) {
+      List<EventSourceRecord<String, EffectiveAlarm>> chunk =
+          records.subList(i, Math.min(i + MAX_BATCH_RECORDS, records.size()));
+
+      blackhole.consume(encoder.encodeBatch("alarm", chunk, keyConverter));
+    }
+  }
+}
@@ -2,23 +2,304 @@ package org.jlab.jaws.business.service;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
 import java.util.*;
-import org.jlab.jaws.business.session.NotificationFacade;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import org.jlab.jaws.business.util.OracleUtil;
 import org.jlab.jaws.entity.*;
-import org.jlab.jaws.persistence.model.BinaryState;
-import org.jlab.jaws.persistence.model.SuppressedState;
 import org.jlab.kafka.eventsource.EventSourceRecord;
 
 public class BatchNotificationService {
-  public void oracleMergeActiveHistory(
-      List<EventSourceRecord<String, EffectiveNotification>> records) throws SQLException {
-    String sql = "{call JAWS_OWNER.MERGE_ACTIVE_HISTORY(?, ?, ?, ?, ?, ?, ?, ?, ?)}";
+  private static final Logger LOG = Logger.getLogger(BatchNotificationService.class.getName());
+
+  /** How rows are merged into the NOTIFICATION table. */
+  public enum MergeMode {
+    /** One MERGE ... FROM DUAL per row, sent as a JDBC batch */
+    BATCH,
+    /** Rows are batch inserted into NOTIFICATION_STAGE and merged with one set-based MERGE */
+    STAGED
+  }
+
+  private static final MergeMode DEFAULT_MERGE_MODE = getMergeModeEnv();
+
+  // NOTIFICATION_CHECKPOINT row for batches written by writeBatch
+  public static final String CHECKPOINT_NAME = "notification";
+
+  // ORA-00942: table or view does not exist
+  private static final int TABLE_NOT_FOUND = 942;
+
+  // Databases created before NOTIFICATION_CHECKPOINT was added don't have it; checkpoints are then
+  // skipped for the rest of the run
+  private static final AtomicBoolean checkpointTableMissing = new AtomicBoolean(false);
+
+  // Checked on the first history insert; databases created before it was added lack the index
+  private static final AtomicBoolean offsetIndexChecked = new AtomicBoolean(false);
+
+  private final MergeMode mergeMode;
+
+  public BatchNotificationService() {
+    this(DEFAULT_MERGE_MODE);
+  }
+
+  public BatchNotificationService(MergeMode mergeMode) {
+    this.mergeMode = mergeMode;
+  }
+
+  private static MergeMode getMergeModeEnv() {
+    String value = System.getenv("NOTIFICATION_MERGE_MODE");
+
+    // STAGED needs the NOTIFICATION_STAGE table, so it's opt-in until databases are migrated
+    if (value == null) {
+      return MergeMode.BATCH;
+    }
+
+    try {
+      return MergeMode.valueOf(value.toUpperCase());
+    } catch (IllegalArgumentException e) {
+      LOG.log(Level.WARNING, "Invalid NOTIFICATION_MERGE_MODE, using BATCH", e);
+      return MergeMode.BATCH;
+    }
+  }
+
+  /**
+   * Write a batch to NOTIFICATION and the three history tables using one connection and one
+   * transaction, recording the offset of the last row in NOTIFICATION_CHECKPOINT in the same
+   * transaction.
+   *
+   * <p>Rows at or before the recorded offset were already written to history, so they only refresh
+   * NOTIFICATION (which is latest-wins); replaying a batch never duplicates history.
+   *
+   * @param rows The rows, in offset order
+   * @throws SQLException If unable to write, in which case nothing is written
+   */
+  public void writeBatch(List<NotificationRow> rows) throws SQLException {
+    writeBatch(rows, Long.MAX_VALUE);
+  }
+
+  /**
+   * Write a batch as writeBatch(rows) does, but never save a checkpoint beyond the given offset.
+   *
+   * @param rows The rows, in offset order
+   * @param maxCheckpoint The highest checkpoint to save, held before an earlier batch that failed
+   * @throws SQLException If unable to write, in which case nothing is written
+   */
+  public void writeBatch(List<NotificationRow> rows, long maxCheckpoint) throws SQLException {
+    if (rows.isEmpty()) {
+      return;
+    }
+
+    Connection con = null;
+
+    try {
+      con = OracleUtil.getConnection();
+      con.setAutoCommit(false);
+      con.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+      try {
+        long checkpoint = selectCheckpoint(con, true);
+
+        List<NotificationRow> history = rows;
+
+        if (rows.get(0).getOffset() <= checkpoint) {
+          history = new ArrayList<>();
+          for (NotificationRow row : rows) {
+            if (row.getOffset() > checkpoint) {
+              history.add(row);
+            }
+          }
+        }
+
+        mergeNotifications(con, rows);
+
+        if (!history.isEmpty()) {
+          insertNotificationHistory(con, history);
+          mergeActiveHistory(con, history);
+          mergeSuppressedHistory(con, history);
+          saveCheckpoint(con, Math.min(maxCheckpoint, history.get(history.size() - 1).getOffset()));
+        }
+
+        con.commit();
+      } catch (SQLException | RuntimeException e) {
+        con.rollback();
+        throw e;
+      }
+    } finally {
+      OracleUtil.close(con);
+    }
+  }
+
+  /**
+   * Return the offset through which notification history is written, by writeBatch or the history
+   * pipeline.
+   *
+   * @return The offset, or -1 if none
+   * @throws SQLException If unable to query
+   */
+  public long getCheckpoint() throws SQLException {
+    if (checkpointTableMissing.get()) {
+      return -1;
+    }
+
+    Connection con = null;
+
+    try {
+      con = OracleUtil.getConnection();
+
+      return selectCheckpoint(con, false);
+    } finally {
+      OracleUtil.close(con);
+    }
+  }
+
+  /**
+   * Return the checkpoint offset only if it was saved within the given number of seconds.
+   *
+   * @param maxAgeSeconds The oldest checkpoint to return
+   * @return The offset, or -1 if none or older
+   * @throws SQLException If unable to query
+   */
+  public long getCheckpoint(long maxAgeSeconds) throws SQLException {
+    if (checkpointTableMissing.get()) {
+      return -1;
+    }
+
+    String sql =
+        "select offset from jaws_owner.notification_checkpoint where name = ? "
+            + "and updated > systimestamp - numtodsinterval(?, 'SECOND')";
+    Connection con = null;
+    PreparedStatement stmt = null;
+    ResultSet rs = null;
+
+    try {
+      con = OracleUtil.getConnection();
+      stmt = con.prepareStatement(sql);
+      stmt.setString(1, CHECKPOINT_NAME);
+      stmt.setLong(2, maxAgeSeconds);
+      rs = stmt.executeQuery();
+
+      return rs.next() ? rs.getLong(1) : -1;
+    } catch (SQLException e) {
+      if (isCheckpointTableMissing(e)) {
+        return -1;
+      }
+      throw e;
+    } finally {
+      OracleUtil.close(rs, stmt, con);
+    }
+  }
+
+  private long selectCheckpoint(Connection con, boolean lock) throws SQLException {
+    if (checkpointTableMissing.get()) {
+      return -1;
+    }
+
+    String sql =
+        "select offset from jaws_owner.notification_checkpoint where name = ?"
+            + (lock ? " for update" : "");
+    PreparedStatement stmt = null;
+    ResultSet rs = null;
+
+    try {
+      stmt = con.prepareStatement(sql);
+      stmt.setString(1, CHECKPOINT_NAME);
+      rs = stmt.executeQuery();
+
+      return rs.next() ? rs.getLong(1) : -1;
+    } catch (SQLException e) {
+      if (isCheckpointTableMissing(e)) {
+        return -1;
+      }
+      throw e;
+    } finally {
+      OracleUtil.close(rs, stmt);
+    }
+  }
+
+  /**
+   * Record that notifications through the given offset are written, unless a later offset already
+   * is. The updated time is refreshed either way, so saving the same offset again marks the
+   * checkpoint current.
+   *
+   * @param offset The offset
+   * @throws SQLException If unable to save
+   */
+  public void saveCheckpoint(long offset) throws SQLException {
+    if (checkpointTableMissing.get()) {
+      return;
+    }
+
     Connection con = null;
+
+    try {
+      con = OracleUtil.getConnection();
+
+      // Use default autoCommit and Transaction Isolation Level (explicitly stated)
+      con.setAutoCommit(true);
+      con.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+      saveCheckpoint(con, offset);
+    } finally {
+      OracleUtil.close(con);
+    }
+  }
+
+  private void saveCheckpoint(Connection con, long offset) throws SQLException {
+    if (checkpointTableMissing.get()) {
+      return;
+    }
+
+    String sql =
+        "MERGE INTO JAWS_OWNER.NOTIFICATION_CHECKPOINT existing "
+            + "USING (SELECT ? AS name, ? AS last_offset FROM DUAL) a "
+            + "ON (a.name = existing.name) "
+            + "WHEN MATCHED THEN UPDATE SET existing.offset = GREATEST(existing.offset, a.last_offset), "
+            + "existing.updated = systimestamp "
+            + "WHEN NOT MATCHED THEN INSERT (existing.name, existing.offset, existing.updated) "
+            + "VALUES (a.name, a.last_offset, systimestamp)";
     PreparedStatement stmt = null;
 
+    try {
+      stmt = con.prepareStatement(sql);
+      stmt.setString(1, CHECKPOINT_NAME);
+      stmt.setLong(2, offset);
+      stmt.executeUpdate();
+    } catch (SQLException e) {
+      // Oracle rolls back just the failed statement, so writeBatch can still commit the rest
+      if (!isCheckpointTableMissing(e)) {
+        throw e;
+      }
+    } finally {
+      OracleUtil.close(stmt);
+    }
+  }
+
+  /**
+   * Whether the error is due to NOTIFICATION_CHECKPOINT not existing, in which case checkpoints are
+   * skipped from now on. Warns the first time.
+   */
+  private static boolean isCheckpointTableMissing(SQLException e) {
+    if (e.getErrorCode() != TABLE_NOT_FOUND) {
+      return false;
+    }
+
+    if (checkpointTableMissing.compareAndSet(false, true)) {
+      LOG.log(
+          Level.WARNING,
+          "JAWS_OWNER.NOTIFICATION_CHECKPOINT not found; notification checkpoints are skipped, so"
+              + " history replayed on restart is only deduplicated by offset and warm restart is"
+              + " unavailable (see the README to create it)");
+    }
+
+    return true;
+  }
+
+  public void mergeNotifications(List<NotificationRow> rows) throws SQLException {
+    Connection con = null;
+
     try {
       con = OracleUtil.getConnection();
 
@@ -26,124 +307,254 @@ public class BatchNotificationService {
       con.setAutoCommit(true);
       con.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
 
-      stmt = con.prepareCall(sql);
+      mergeNotifications(con, rows);
+    } finally {
+      OracleUtil.close(con);
+    }
+  }
 
-      for (EventSourceRecord<String, EffectiveNotification> record : records) {
-        AlarmActivationUnion union = record.getValue().getActivation();
-
-        BinaryState state = BinaryState.fromAlarmState(record.getValue().getState());
-
-        String activationType = "NotActive";
-        String note = null;
-        String sevr = null;
-        String stat = null;
-        String error = null;
-        String incitedWith = getIncitedWith(record.getValue().getState());
-
-        if (union != null) {
-          if (union.getUnion() instanceof EPICSActivation) {
-            activationType = "EPICS";
-            EPICSActivation epics = (EPICSActivation) union.getUnion();
-            sevr = epics.getSevr().name();
-            stat = epics.getStat().name();
-          } else if (union.getUnion() instanceof NoteActivation) {
-            activationType = "Note";
-            NoteActivation noteObj = (NoteActivation) union.getUnion();
-            note = noteObj.getNote();
-          } else if (union.getUnion() instanceof ChannelErrorActivation) {
-            activationType = "ChannelError";
-            ChannelErrorActivation channel = (ChannelErrorActivation) union.getUnion();
-            error = channel.getError();
-          } else if (union.getUnion() instanceof Activation) {
-            activationType = "Simple";
-          }
-        }
+  private void mergeNotifications(Connection con, List<NotificationRow> rows) throws SQLException {
+    // Only the last transition per alarm survives the merge, so don't send the others
+    List<NotificationRow> latest = NotificationRow.latestPerName(rows);
+    List<NotificationRow> values = NotificationRow.withoutTombstones(latest);
 
-        stmt.setString(1, record.getKey());
-        stmt.setDate(2, new java.sql.Date(record.getTimestamp()));
-        stmt.setString(3, BinaryState.Normal == state ? "Y" : "N");
-        stmt.setString(4, activationType);
-        if (note == null) {
-          stmt.setNull(5, Types.VARCHAR);
-        } else {
-          stmt.setString(5, note);
-        }
-        if (sevr == null) {
-          stmt.setNull(6, Types.VARCHAR);
-        } else {
-          stmt.setString(6, sevr);
-        }
-        if (stat == null) {
-          stmt.setNull(7, Types.VARCHAR);
-        } else {
-          stmt.setString(7, stat);
-        }
-        if (error == null) {
-          stmt.setNull(8, Types.VARCHAR);
-        } else {
-          stmt.setString(8, error);
-        }
-        if (incitedWith == null) {
-          stmt.setNull(9, Types.VARCHAR);
-        } else {
-          stmt.setString(9, incitedWith);
+    if (values.size() < latest.size()) {
+      deleteNotifications(con, latest);
+    }
+
+    if (values.isEmpty()) {
+      return;
+    }
+
+    if (mergeMode == MergeMode.STAGED) {
+      mergeNotificationsStaged(con, values);
+    } else {
+      mergeNotificationsBatch(con, values);
+    }
+  }
+
+  /** Delete the NOTIFICATION row of each tombstone in rows. */
+  private void deleteNotifications(Connection con, List<NotificationRow> rows) throws SQLException {
+    PreparedStatement stmt = null;
+
+    try {
+      stmt = con.prepareStatement("delete from jaws_owner.notification where name = ?");
+
+      for (NotificationRow row : rows) {
+        if (row.isTombstone()) {
+          stmt.setString(1, row.getName());
+          stmt.addBatch();
         }
+      }
+
+      stmt.executeBatch();
+    } finally {
+      OracleUtil.close(stmt);
+    }
+  }
+
+  private void mergeNotificationsBatch(Connection con, List<NotificationRow> rows)
+      throws SQLException {
+    String sql =
+        "MERGE INTO JAWS_OWNER.NOTIFICATION existing "
+            + "                USING "
+            + "                    (SELECT ?  AS name, "
+            + "                ? AS state, "
+            + "                ? AS since, "
+            + "                ? AS active_override, "
+            + "                ? AS activation_type, "
+            + "                ? AS activation_note, "
+            + "                ? AS activation_sevr, "
+            + "                ? AS activation_stat, "
+            + "                ? AS activation_error "
+            + "                    FROM DUAL) a "
+            + "                 ON (a.name = existing.name) "
+            + "                WHEN MATCHED THEN UPDATE "
+            + "                SET "
+            + "                existing.state = a.state, "
+            + "                existing.since = a.since, "
+            + "                    existing.active_override = a.active_override, "
+            + "                    existing.activation_type = a.activation_type, "
+            + "                    existing.activation_note = a.activation_note, "
+            + "                    existing.activation_sevr = a.activation_sevr, "
+            + "                    existing.activation_stat = a.activation_stat, "
+            + "                    existing.activation_error = a.activation_error "
+            + "                WHEN NOT MATCHED THEN INSERT "
+            + "                    (existing.name, existing.state, existing.since, existing.active_override, "
+            + "                        existing.activation_type, existing.activation_note, existing.activation_sevr, "
+            + "                        existing.activation_stat, existing.activation_error) "
+            + "                    VALUES (a.name, a.state, a.since, a.active_override, a.activation_type, "
+            + "                        a.activation_note, a.activation_sevr, a.activation_stat, a.activation_error) ";
+    PreparedStatement stmt = null;
+
+    try {
+      stmt = con.prepareStatement(sql);
+
+      for (NotificationRow row : rows) {
+        stmt.setString(1, row.getName());
+        stmt.setString(2, row.getState());
+        stmt.setDate(3, row.getSince());
+        OracleUtil.setNullableString(stmt, 4, row.getActiveOverride());
+        stmt.setString(5, row.getActivationType());
+        OracleUtil.setNullableString(stmt, 6, row.getNote());
+        OracleUtil.setNullableString(stmt, 7, row.getSevr());
+        OracleUtil.setNullableString(stmt, 8, row.getStat());
+        OracleUtil.setNullableString(stmt, 9, row.getError());
 
         stmt.addBatch();
       }
 
       stmt.executeBatch();
     } finally {
-      OracleUtil.close(stmt, con);
+      OracleUtil.close(stmt);
     }
   }
 
-  private String getIncitedWith(AlarmState state) {
-    String incitedWith = null;
+  /**
+   * Merge with a single set-based statement: array insert the rows into the NOTIFICATION_STAGE
+   * global temporary table, then MERGE from it. Names must be unique (see latestPerName).
+   */
+  private void mergeNotificationsStaged(Connection con, List<NotificationRow> rows)
+      throws SQLException {
+    String insertSql =
+        "insert into jaws_owner.notification_stage(name, state, since, active_override, activation_type, "
+            + "activation_note, activation_sevr, activation_stat, activation_error) "
+            + "values(?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    String mergeSql =
+        "MERGE INTO JAWS_OWNER.NOTIFICATION existing "
+            + "USING JAWS_OWNER.NOTIFICATION_STAGE a "
+            + "ON (a.name = existing.name) "
+            + "WHEN MATCHED THEN UPDATE SET "
+            + "existing.state = a.state, "
+            + "existing.since = a.since, "
+            + "existing.active_override = a.active_override, "
+            + "existing.activation_type = a.activation_type, "
+            + "existing.activation_note = a.activation_note, "
+            + "existing.activation_sevr = a.activation_sevr, "
+            + "existing.activation_stat = a.activation_stat, "
+            + "existing.activation_error = a.activation_error "
+            + "WHEN NOT MATCHED THEN INSERT "
+            + "(existing.name, existing.state, existing.since, existing.active_override, "
+            + "existing.activation_type, existing.activation_note, existing.activation_sevr, "
+            + "existing.activation_stat, existing.activation_error) "
+            + "VALUES (a.name, a.state, a.since, a.active_override, a.activation_type, "
+            + "a.activation_note, a.activation_sevr, a.activation_stat, a.activation_error)";
+
+    // Staged rows only live until commit, so an autocommit caller needs a transaction here
+    boolean autoCommit = con.getAutoCommit();
+    PreparedStatement insertStmt = null;
+    PreparedStatement mergeStmt = null;
+    PreparedStatement deleteStmt = null;
+
+    try {
+      if (autoCommit) {
+        con.setAutoCommit(false);
+      }
+
+      insertStmt = con.prepareStatement(insertSql);
+
+      for (NotificationRow row : rows) {
+        insertStmt.setString(1, row.getName());
+        insertStmt.setString(2, row.getState());
+        insertStmt.setDate(3, row.getSince());
+        OracleUtil.setNullableString(insertStmt, 4, row.getActiveOverride());
+        insertStmt.setString(5, row.getActivationType());
+        OracleUtil.setNullableString(insertStmt, 6, row.getNote());
+        OracleUtil.setNullableString(insertStmt, 7, row.getSevr());
+        OracleUtil.setNullableString(insertStmt, 8, row.getStat());
+        OracleUtil.setNullableString(insertStmt, 9, row.getError());
+
+        insertStmt.addBatch();
+      }
+
+      insertStmt.executeBatch();
+
+      mergeStmt = con.prepareStatement(mergeSql);
+      mergeStmt.executeUpdate();
 
-    switch (state) {
-      case ActiveOffDelayed:
-        incitedWith = "OffDelayed";
-        break;
-      case ActiveLatched:
-        incitedWith = "Latched";
-        break;
+      if (autoCommit) {
+        con.commit();
+      } else {
+        // The caller's transaction continues, so clear the stage for any later merge in it
+        deleteStmt = con.prepareStatement("delete from jaws_owner.notification_stage");
+        deleteStmt.executeUpdate();
+      }
+    } catch (SQLException | RuntimeException e) {
+      if (autoCommit) {
+        con.rollback();
+      }
+      throw e;
+    } finally {
+      OracleUtil.close(deleteStmt, mergeStmt, insertStmt);
+
+      if (autoCommit) {
+        con.setAutoCommit(true);
+      }
     }
+  }
+
+  public void oracleMergeActiveHistory(
+      List<EventSourceRecord<String, EffectiveNotification>> records) throws SQLException {
+    mergeActiveHistory(NotificationRow.decode(records));
+  }
+
+  public void mergeActiveHistory(List<NotificationRow> rows) throws SQLException {
+    Connection con = null;
+
+    try {
+      con = OracleUtil.getConnection();
+
+      // Use default autoCommit and Transaction Isolation Level (explicitly stated)
+      con.setAutoCommit(true);
+      con.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
 
-    return incitedWith;
+      mergeActiveHistory(con, rows);
+    } finally {
+      OracleUtil.close(con);
+    }
   }
 
-  private String getSuppressedWith(AlarmState state) {
-    String suppressedWith = null;
-
-    switch (state) {
-      case NormalDisabled:
-        suppressedWith = "Disabled";
-        break;
-      case NormalFiltered:
-        suppressedWith = "Filtered";
-        break;
-      case NormalMasked:
-        suppressedWith = "Masked";
-        break;
-      case NormalContinuousShelved:
-      case NormalOneShotShelved:
-        suppressedWith = "Shelved";
-        break;
-      case NormalOnDelayed:
-        suppressedWith = "OnDelayed";
-        break;
-    }
-
-    return suppressedWith;
+  private void mergeActiveHistory(Connection con, List<NotificationRow> rows) throws SQLException {
+    // A removed alarm has no state to record
+    rows = NotificationRow.withoutTombstones(rows);
+
+    if (rows.isEmpty()) {
+      return;
+    }
+
+    String sql = "{call JAWS_OWNER.MERGE_ACTIVE_HISTORY(?, ?, ?, ?, ?, ?, ?, ?, ?)}";
+    PreparedStatement stmt = null;
+
+    try {
+      stmt = con.prepareCall(sql);
+
+      for (NotificationRow row : rows) {
+        stmt.setString(1, row.getName());
+        stmt.setDate(2, row.getSince());
+        stmt.setString(3, row.getNormal());
+        stmt.setString(4, row.getActivationType());
+        OracleUtil.setNullableString(stmt, 5, row.getNote());
+        OracleUtil.setNullableString(stmt, 6, row.getSevr());
+        OracleUtil.setNullableString(stmt, 7, row.getStat());
+        OracleUtil.setNullableString(stmt, 8, row.getError());
+        OracleUtil.setNullableString(stmt, 9, row.getIncitedWith());
+
+        stmt.addBatch();
+      }
+
+      stmt.executeBatch();
+    } finally {
+      OracleUtil.close(stmt);
+    }
   }
 
   public void oracleMergeSuppressedHistory(
       List<EventSourceRecord<String, EffectiveNotification>> records) throws SQLException {
-    String sql =
-        "{call JAWS_OWNER.MERGE_SUPPRESSED_HISTORY(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)}";
+    mergeSuppressedHistory(NotificationRow.decode(records));
+  }
+
+  public void mergeSuppressedHistory(List<NotificationRow> rows) throws SQLException {
     Connection con = null;
-    PreparedStatement stmt = null;
 
     try {
       con = OracleUtil.getConnection();
@@ -152,106 +563,58 @@ public class BatchNotificationService {
       con.setAutoCommit(true);
       con.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
 
-      stmt = con.prepareCall(sql);
+      mergeSuppressedHistory(con, rows);
+    } finally {
+      OracleUtil.close(con);
+    }
+  }
 
-      for (EventSourceRecord<String, EffectiveNotification> record : records) {
-        AlarmActivationUnion union = record.getValue().getActivation();
-
-        SuppressedState state = SuppressedState.fromAlarmState(record.getValue().getState());
-
-        String activationType = "NotActive";
-        String note = null;
-        String sevr = null;
-        String stat = null;
-        String error = null;
-        String suppressedWith = getSuppressedWith(record.getValue().getState());
-        String comments = null;
-        boolean oneshot = AlarmState.NormalOneShotShelved.equals(record.getValue().getState());
-        Date expiration = null;
-        String reason = null;
-
-        if (union != null) {
-          if (union.getUnion() instanceof EPICSActivation) {
-            activationType = "EPICS";
-            EPICSActivation epics = (EPICSActivation) union.getUnion();
-            sevr = epics.getSevr().name();
-            stat = epics.getStat().name();
-          } else if (union.getUnion() instanceof NoteActivation) {
-            activationType = "Note";
-            NoteActivation noteObj = (NoteActivation) union.getUnion();
-            note = noteObj.getNote();
-          } else if (union.getUnion() instanceof ChannelErrorActivation) {
-            activationType = "ChannelError";
-            ChannelErrorActivation channel = (ChannelErrorActivation) union.getUnion();
-            error = channel.getError();
-          } else if (union.getUnion() instanceof Activation) {
-            activationType = "Simple";
-          }
-        }
+  private void mergeSuppressedHistory(Connection con, List<NotificationRow> rows)
+      throws SQLException {
+    rows = NotificationRow.withoutTombstones(rows);
 
-        stmt.setString(1, record.getKey());
-        stmt.setDate(2, new java.sql.Date(record.getTimestamp()));
-        stmt.setString(3, SuppressedState.NOT_SUPPRESSED == state ? "Y" : "N");
-        stmt.setString(4, activationType);
-        if (note == null) {
-          stmt.setNull(5, Types.VARCHAR);
-        } else {
-          stmt.setString(5, note);
-        }
-        if (sevr == null) {
-          stmt.setNull(6, Types.VARCHAR);
-        } else {
-          stmt.setString(6, sevr);
-        }
-        if (stat == null) {
-          stmt.setNull(7, Types.VARCHAR);
-        } else {
-          stmt.setString(7, stat);
-        }
-        if (error == null) {
-          stmt.setNull(8, Types.VARCHAR);
-        } else {
-          stmt.setString(8, error);
-        }
-        if (suppressedWith == null) {
-          stmt.setNull(9, Types.VARCHAR);
-        } else {
-          stmt.setString(9, suppressedWith);
-        }
-        if (comments == null) {
-          stmt.setNull(10, Types.VARCHAR);
-        } else {
-          stmt.setString(10, comments);
-        }
-        stmt.setString(11, oneshot ? "Y" : "N");
-        if (expiration == null) {
-          stmt.setNull(12, Types.VARCHAR);
-        } else {
-          stmt.setDate(12, new java.sql.Date(expiration.getTime()));
-        }
-        if (reason == null) {
-          stmt.setNull(13, Types.VARCHAR);
-        } else {
-          stmt.setString(13, reason);
-        }
+    if (rows.isEmpty()) {
+      return;
+    }
+
+    String sql =
+        "{call JAWS_OWNER.MERGE_SUPPRESSED_HISTORY(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)}";
+    PreparedStatement stmt = null;
+
+    try {
+      stmt = con.prepareCall(sql);
+
+      for (NotificationRow row : rows) {
+        stmt.setString(1, row.getName());
+        stmt.setDate(2, row.getSince());
+        stmt.setString(3, row.getUnsuppressed());
+        stmt.setString(4, row.getActivationType());
+        OracleUtil.setNullableString(stmt, 5, row.getNote());
+        OracleUtil.setNullableString(stmt, 6, row.getSevr());
+        OracleUtil.setNullableString(stmt, 7, row.getStat());
+        OracleUtil.setNullableString(stmt, 8, row.getError());
+        OracleUtil.setNullableString(stmt, 9, row.getSuppressedWith());
+        stmt.setNull(10, Types.VARCHAR); // comments
+        stmt.setString(11, row.getOneshot());
+        stmt.setNull(12, Types.VARCHAR); // expiration
+        stmt.setNull(13, Types.VARCHAR); // reason
 
         stmt.addBatch();
       }
 
       stmt.executeBatch();
     } finally {
-      OracleUtil.close(stmt, con);
+      OracleUtil.close(stmt);
     }
   }
 
   public void oracleInsertNotificationHistory(
       List<EventSourceRecord<String, EffectiveNotification>> records) throws SQLException {
-    String sql =
-        "insert into jaws_owner.notification_history(notification_history_id, offset, name, state, since, "
-            + "active_override, activation_type, activation_note, activation_sevr, activation_stat, activation_error) "
-            + "values(jaws_owner.notification_history_id.nextval, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    insertNotificationHistory(NotificationRow.decode(records));
+  }
+
+  public void insertNotificationHistory(List<NotificationRow> rows) throws SQLException {
     Connection con = null;
-    PreparedStatement stmt = null;
 
     try {
       con = OracleUtil.getConnection();
@@ -260,76 +623,82 @@ public class BatchNotificationService {
       con.setAutoCommit(true);
       con.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
 
-      stmt = con.prepareCall(sql);
+      insertNotificationHistory(con, rows);
+    } finally {
+      OracleUtil.close(con);
+    }
+  }
 
-      for (EventSourceRecord<String, EffectiveNotification> record : records) {
-        AlarmActivationUnion union = record.getValue().getActivation();
-
-        String state = BinaryState.fromAlarmState(record.getValue().getState()).name();
-        OverriddenAlarmType override =
-            NotificationFacade.overrideFromAlarmState(record.getValue().getState());
-        String activationType = "NotActive";
-        String note = null;
-        String sevr = null;
-        String stat = null;
-        String error = null;
-
-        if (union != null) {
-          if (union.getUnion() instanceof EPICSActivation) {
-            activationType = "EPICS";
-            EPICSActivation epics = (EPICSActivation) union.getUnion();
-            sevr = epics.getSevr().name();
-            stat = epics.getStat().name();
-          } else if (union.getUnion() instanceof NoteActivation) {
-            activationType = "Note";
-            NoteActivation noteObj = (NoteActivation) union.getUnion();
-            note = noteObj.getNote();
-          } else if (union.getUnion() instanceof ChannelErrorActivation) {
-            activationType = "ChannelError";
-            ChannelErrorActivation channel = (ChannelErrorActivation) union.getUnion();
-            error = channel.getError();
-          } else if (union.getUnion() instanceof Activation) {
-            activationType = "Simple";
-          }
-        }
+  private void insertNotificationHistory(Connection con, List<NotificationRow> rows)
+      throws SQLException {
+    rows = NotificationRow.withoutTombstones(rows);
 
-        stmt.setLong(1, record.getOffset());
-        stmt.setString(2, record.getKey());
-        stmt.setString(3, state);
-        stmt.setDate(4, new java.sql.Date(record.getTimestamp()));
-        if (override == null) {
-          stmt.setNull(5, Types.VARCHAR);
-        } else {
-          stmt.setString(5, override.name());
-        }
-        stmt.setString(6, activationType);
-        if (note == null) {
-          stmt.setNull(7, Types.VARCHAR);
-        } else {
-          stmt.setString(7, note);
-        }
-        if (sevr == null) {
-          stmt.setNull(8, Types.VARCHAR);
-        } else {
-          stmt.setString(8, sevr);
-        }
-        if (stat == null) {
-          stmt.setNull(9, Types.VARCHAR);
-        } else {
-          stmt.setString(9, stat);
-        }
-        if (error == null) {
-          stmt.setNull(10, Types.VARCHAR);
-        } else {
-          stmt.setString(10, error);
-        }
+    if (rows.isEmpty()) {
+      return;
+    }
+
+    if (offsetIndexChecked.compareAndSet(false, true)) {
+      checkOffsetIndex(con);
+    }
+
+    String sql =
+        "insert into jaws_owner.notification_history(notification_history_id, offset, name, state, since, "
+            + "active_override, activation_type, activation_note, activation_sevr, activation_stat, activation_error) "
+            + "select jaws_owner.notification_history_id.nextval, ?, ?, ?, ?, ?, ?, ?, ?, ?, ? from dual "
+            + "where not exists (select 1 from jaws_owner.notification_history where offset = ?)";
+    PreparedStatement stmt = null;
+
+    try {
+      stmt = con.prepareCall(sql);
+
+      for (NotificationRow row : rows) {
+        stmt.setLong(1, row.getOffset());
+        stmt.setString(2, row.getName());
+        stmt.setString(3, row.getState());
+        stmt.setDate(4, row.getSince());
+        OracleUtil.setNullableString(stmt, 5, row.getActiveOverride());
+        stmt.setString(6, row.getActivationType());
+        OracleUtil.setNullableString(stmt, 7, row.getNote());
+        OracleUtil.setNullableString(stmt, 8, row.getSevr());
+        OracleUtil.setNullableString(stmt, 9, row.getStat());
+        OracleUtil.setNullableString(stmt, 10, row.getError());
+        stmt.setLong(11, row.getOffset()); // Already inserted if replayed
 
         stmt.addBatch();
       }
 
       stmt.executeBatch();
     } finally {
-      OracleUtil.close(stmt, con);
+      OracleUtil.close(stmt);
+    }
+  }
+
+  /**
+   * Log once if NOTIFICATION_HISTORY has no index on OFFSET: the insert skips offsets already
+   * present, which without it scans the whole table for every row.
+   */
+  private void checkOffsetIndex(Connection con) {
+    String sql =
+        "select count(*) from all_ind_columns where table_owner = 'JAWS_OWNER' "
+            + "and table_name = 'NOTIFICATION_HISTORY' and column_name = 'OFFSET' "
+            + "and column_position = 1";
+    PreparedStatement stmt = null;
+    ResultSet rs = null;
+
+    try {
+      stmt = con.prepareStatement(sql);
+      rs = stmt.executeQuery();
+
+      if (rs.next() && rs.getLong(1) == 0) {
+        LOG.log(
+            Level.SEVERE,
+            "JAWS_OWNER.NOTIFICATION_HISTORY has no index on OFFSET, so each history insert scans "
+                + "the whole table; create NOTIFICATION_HISTORY_OFFSET_IDX (see the README)");
+      }
+    } catch (SQLException e) {
+      LOG.log(Level.WARNING, "Unable to check for an index on NOTIFICATION_HISTORY.OFFSET", e);
+    } finally {
+      OracleUtil.close(rs, stmt);
     }
   }
 }
@@ -0,0 +1,383 @@
+package org.jlab.jaws.business.service;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes notification history (NOTIFICATION_HISTORY, ACTIVE_HISTORY and SUPPRESSED_HISTORY) off the
+ * Kafka consumer thread.
+ *
+ * <p>Records are partitioned by alarm name across worker threads, each with a bounded queue of
+ * batches, so history for a given alarm is always written in offset order. A failed write is
+ * retried with backoff, resuming from the history table that failed, before the batch is logged and
+ * dropped. When a worker queue is full submit blocks, which pushes back on the consumer instead of
+ * growing without bound.
+ *
+ * <p>Workers write in batches sized by the history NotificationWriteStage, combining queued batches
+ * when behind and splitting large ones.
+ *
+ * <p>As workers finish, the offset through which every submitted record's history is written is
+ * saved to NOTIFICATION_CHECKPOINT. Records at or before the checkpoint given at startup are
+ * skipped, so a restart doesn't write history again. The saved offset can trail actual progress (a
+ * busy worker only vouches for what it has finished), which is safe as the history writers ignore
+ * records already written. A dropped batch holds the checkpoint before its first offset for the
+ * rest of the run, so its history is attempted again after a restart instead of being skipped.
+ *
+ * <p>Worker threads come from the given ThreadFactory, which in the container is the managed one.
+ */
+public class NotificationHistoryPipeline implements AutoCloseable {
+  private static final Logger LOG = Logger.getLogger(NotificationHistoryPipeline.class.getName());
+
+  private static final long INITIAL_BACKOFF_MILLIS = 500;
+  private static final long MAX_BACKOFF_MILLIS = 30000;
+
+  // Signals a worker to exit once the batches ahead of it are written
+  private static final List<NotificationRow> STOP = Collections.emptyList();
+
+  private final Worker[] workers;
+  private final int maxAttempts;
+  private final NotificationWriteStage stage;
+  private final BatchNotificationService checkpointService = new BatchNotificationService();
+  private final long skipThroughOffset;
+
+  // Offset of the last record submitted; written only by the submitting thread
+  private volatile long submittedOffset;
+
+  // Last checkpoint saved, guarded by checkpointLock
+  private final Object checkpointLock = new Object();
+  private long savedCheckpoint;
+
+  // The checkpoint may not pass this; lowered to just before the first offset of a dropped batch
+  private long checkpointCeiling = Long.MAX_VALUE;
+
+  /**
+   * Create and start the pipeline.
+   *
+   * @param threads The number of worker threads
+   * @param maxQueuedBatches The number of batches each worker may have waiting
+   * @param maxAttempts The number of times a batch is attempted before it's dropped
+   * @param stage Sizes the writes and records their timing
+   * @param checkpoint The saved checkpoint; history at or before it is already written
+   * @param threadFactory Creates the worker threads
+   */
+  public NotificationHistoryPipeline(
+      int threads,
+      int maxQueuedBatches,
+      int maxAttempts,
+      NotificationWriteStage stage,
+      long checkpoint,
+      ThreadFactory threadFactory) {
+    this.workers = new Worker[Math.max(1, threads)];
+    this.maxAttempts = Math.max(1, maxAttempts);
+    this.stage = stage;
+    this.skipThroughOffset = checkpoint;
+    this.submittedOffset = checkpoint;
+    this.savedCheckpoint = checkpoint;
+
+    for (int i = 0; i < workers.length; i++) {
+      workers[i] = new Worker(i, Math.max(1, maxQueuedBatches), threadFactory);
+      workers[i].thread.start();
+    }
+  }
+
+  /**
+   * Queue a batch of rows for history. Blocks while the queue of a worker it's assigned to is full.
+   *
+   * @param rows The rows, in offset order
+   * @throws InterruptedException If interrupted while waiting for queue space
+   */
+  public void submit(List<NotificationRow> rows) throws InterruptedException {
+    List<List<NotificationRow>> partitions = new ArrayList<>(workers.length);
+    for (int i = 0; i < workers.length; i++) {
+      partitions.add(new ArrayList<>());
+    }
+
+    for (NotificationRow row : rows) {
+      if (row.getOffset() > skipThroughOffset) {
+        partitions.get(Math.floorMod(row.getName().hashCode(), workers.length)).add(row);
+      }
+    }
+
+    for (int i = 0; i < workers.length; i++) {
+      if (!partitions.get(i).isEmpty()) {
+        workers[i].put(partitions.get(i));
+      }
+    }
+
+    // Published after the puts, so a worker with nothing pending has written everything up to it
+    if (!rows.isEmpty() && rows.get(rows.size() - 1).getOffset() > submittedOffset) {
+      submittedOffset = rows.get(rows.size() - 1).getOffset();
+    }
+  }
+
+  /** Save the offset through which all submitted history is written, if it has advanced. */
+  private void checkpoint() {
+    long candidate = submittedOffset;
+
+    for (Worker worker : workers) {
+      if (worker.pending.get() > 0) {
+        candidate = Math.min(candidate, worker.completedOffset);
+      }
+    }
+
+    synchronized (checkpointLock) {
+      candidate = Math.min(candidate, checkpointCeiling);
+
+      if (candidate <= savedCheckpoint) {
+        return;
+      }
+
+      try {
+        checkpointService.saveCheckpoint(candidate);
+        savedCheckpoint = candidate;
+      } catch (SQLException e) {
+        LOG.log(Level.WARNING, "Unable to save notification history checkpoint", e);
+      }
+    }
+  }
+
+  /**
+   * Save the checkpoint again if all history through the given offset is written, refreshing its
+   * updated time. On a quiet topic the checkpoint doesn't advance, and without this it would look
+   * too old for a warm restart.
+   *
+   * @param receivedOffset The newest offset received from Kafka
+   */
+  public void refreshCheckpoint(long receivedOffset) {
+    for (Worker worker : workers) {
+      if (worker.pending.get() > 0) {
+        return;
+      }
+    }
+
+    synchronized (checkpointLock) {
+      if (savedCheckpoint < 0
+          || savedCheckpoint < receivedOffset
+          || checkpointCeiling != Long.MAX_VALUE) {
+        return;
+      }
+
+      try {
+        checkpointService.saveCheckpoint(savedCheckpoint);
+      } catch (SQLException e) {
+        LOG.log(Level.WARNING, "Unable to refresh notification history checkpoint", e);
+      }
+    }
+  }
+
+  /**
+   * Keep the checkpoint before the given offset for the rest of the run, so the records from it on
+   * are replayed after a restart. Used for history that was dropped and for notifications that
+   * failed to merge.
+   *
+   * @param offset The first offset that wasn't written
+   */
+  public void holdCheckpointBefore(long offset) {
+    synchronized (checkpointLock) {
+      checkpointCeiling = Math.min(checkpointCeiling, offset - 1);
+    }
+  }
+
+  /**
+   * Return the number of batches waiting to be written, across all workers.
+   *
+   * @return The queued batch count
+   */
+  public int getQueuedBatches() {
+    int queued = 0;
+
+    for (Worker worker : workers) {
+      queued = queued + worker.queue.size();
+    }
+
+    return queued;
+  }
+
+  /**
+   * Stop the workers, waiting up to the given time for queued batches to be written.
+   *
+   * @param timeout The maximum time to wait
+   * @param unit The unit of timeout
+   */
+  public void close(long timeout, TimeUnit unit) {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+    for (Worker worker : workers) {
+      if (!worker.queue.offer(STOP)) {
+        worker.thread.interrupt();
+      }
+    }
+
+    try {
+      for (Worker worker : workers) {
+        worker.thread.join(
+            Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+
+        if (worker.thread.isAlive()) {
+          LOG.log(
+              Level.WARNING,
+              "Abandoning {0} queued notification history batches",
+              worker.queue.size());
+          worker.thread.interrupt();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public void close() {
+    close(10, TimeUnit.SECONDS);
+  }
+
+  private class Worker implements Runnable {
+    private final String name;
+    private final Thread thread;
+    private final BlockingQueue<List<NotificationRow>> queue;
+    private final BatchNotificationService service = new BatchNotificationService();
+
+    // Batches put and not yet written; completedOffset is set before this is decremented
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile long completedOffset = -1;
+
+    private Worker(int index, int capacity, ThreadFactory threadFactory) {
+      this.name = "notification-history-" + index;
+      this.queue = new ArrayBlockingQueue<>(capacity);
+      this.thread = threadFactory.newThread(this);
+      this.thread.setName(name);
+    }
+
+    private void put(List<NotificationRow> rows) throws InterruptedException {
+      pending.incrementAndGet();
+      boolean queued = false;
+
+      try {
+        if (!queue.offer(rows)) {
+          LOG.log(Level.WARNING, "{0} queue is full; waiting", name);
+          queue.put(rows);
+        }
+        queued = true;
+      } finally {
+        // Interrupted while waiting; a count left behind would pin the checkpoint
+        if (!queued) {
+          pending.decrementAndGet();
+        }
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          List<NotificationRow> rows = queue.take();
+
+          if (rows == STOP) {
+            break;
+          }
+
+          // Only this thread takes from the queue, so a peeked batch is the one polled
+          int batchSize = stage.getBatchSize();
+          int taken = 1;
+          List<NotificationRow> next = queue.peek();
+          if (next != null && next != STOP && rows.size() + next.size() <= batchSize) {
+            List<NotificationRow> combined = new ArrayList<>(rows);
+            do {
+              combined.addAll(queue.poll());
+              taken++;
+              next = queue.peek();
+            } while (next != null && next != STOP && combined.size() + next.size() <= batchSize);
+            rows = combined;
+          }
+
+          for (int i = 0; i < rows.size(); i = i + batchSize) {
+            List<NotificationRow> chunk = rows.subList(i, Math.min(i + batchSize, rows.size()));
+
+            if (!write(chunk)) {
+              holdCheckpointBefore(chunk.get(0).getOffset());
+            }
+          }
+
+          // Dropped chunks count as done here, the ceiling keeps the checkpoint before them
+          completedOffset = rows.get(rows.size() - 1).getOffset();
+          pending.addAndGet(-taken);
+
+          checkpoint();
+        }
+      } catch (InterruptedException e) {
+        LOG.log(Level.FINE, "{0} interrupted", name);
+      }
+    }
+
+    /**
+     * Write history for rows, retrying with backoff.
+     *
+     * @return false if dropped after maxAttempts
+     */
+    private boolean write(List<NotificationRow> rows) throws InterruptedException {
+      long start = System.nanoTime();
+      long backoff = INITIAL_BACKOFF_MILLIS;
+      int completed = 0; // History tables written so far; a retry resumes with the next one
+
+      for (int attempt = 1; ; attempt++) {
+        try {
+          if (completed == 0) {
+            service.insertNotificationHistory(rows);
+            completed++;
+          }
+          if (completed == 1) {
+            service.mergeActiveHistory(rows);
+            completed++;
+          }
+          if (completed == 2) {
+            service.mergeSuppressedHistory(rows);
+            completed++;
+          }
+          break;
+        } catch (SQLException | RuntimeException e) {
+          if (attempt >= maxAttempts) {
+            LOG.log(
+                Level.SEVERE,
+                "Dropping history for "
+                    + rows.size()
+                    + " notifications (offsets "
+                    + rows.get(0).getOffset()
+                    + " to "
+                    + rows.get(rows.size() - 1).getOffset()
+                    + ") after "
+                    + attempt
+                    + " attempts",
+                e);
+            return false;
+          }
+
+          LOG.log(
+              Level.WARNING,
+              "Unable to merge notification history (attempt " + attempt + "); retrying",
+              e);
+          Thread.sleep(backoff);
+          backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+        }
+      }
+
+      long elapsed = System.nanoTime() - start;
+      stage.written(rows, elapsed);
+
+      LOG.log(
+          Level.INFO,
+          "Merged history for {0} notifications in {1} milliseconds",
+          new Object[] {rows.size(), elapsed / 1_000_000});
+
+      return true;
+    }
+  }
+}
@@ -0,0 +1,140 @@
+package org.jlab.jaws.business.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hands batches of notifications from the Kafka consumer to a single writer thread, which writes
+ * them in the size the merge NotificationWriteStage is tuned to.
+ *
+ * <p>While a write is in progress the consumer keeps polling and queueing, so when Oracle falls
+ * behind the small batches Kafka returns are combined into one write instead of paying a round trip
+ * each; a batch larger than the write size is split. Batches are written in the order queued. When
+ * the queue is full put blocks, which pushes back on the consumer.
+ */
+public class NotificationMergeQueue implements AutoCloseable {
+  private static final Logger LOG = Logger.getLogger(NotificationMergeQueue.class.getName());
+
+  // Signals the writer to exit once the batches ahead of it are written
+  private static final List<NotificationRow> STOP = Collections.emptyList();
+
+  private final BlockingQueue<List<NotificationRow>> queue;
+  private final NotificationWriteStage stage;
+  private final Consumer<List<NotificationRow>> writer;
+  private final Thread thread;
+
+  /**
+   * Create and start the queue.
+   *
+   * @param maxQueuedBatches The number of batches that may be waiting
+   * @param stage Sizes the writes
+   * @param writer Writes a batch, in offset order
+   * @param threadFactory Creates the writer thread
+   */
+  public NotificationMergeQueue(
+      int maxQueuedBatches,
+      NotificationWriteStage stage,
+      Consumer<List<NotificationRow>> writer,
+      ThreadFactory threadFactory) {
+    this.queue = new ArrayBlockingQueue<>(Math.max(1, maxQueuedBatches));
+    this.stage = stage;
+    this.writer = writer;
+    this.thread = threadFactory.newThread(this::run);
+    this.thread.setName("notification-merge");
+    this.thread.start();
+  }
+
+  /**
+   * Queue a batch to be written. Blocks while the queue is full.
+   *
+   * @param rows The rows, in offset order
+   * @throws InterruptedException If interrupted while waiting for queue space
+   */
+  public void put(List<NotificationRow> rows) throws InterruptedException {
+    if (rows.isEmpty()) {
+      return;
+    }
+
+    if (!queue.offer(rows)) {
+      LOG.log(Level.WARNING, "Notification merge queue is full; waiting");
+      queue.put(rows);
+    }
+  }
+
+  public int getQueuedBatches() {
+    return queue.size();
+  }
+
+  private void run() {
+    try {
+      while (true) {
+        List<NotificationRow> rows = queue.take();
+
+        if (rows == STOP) {
+          break;
+        }
+
+        // Only this thread takes from the queue, so a peeked batch is the one polled
+        int batchSize = stage.getBatchSize();
+        List<NotificationRow> next = queue.peek();
+        if (next != null && next != STOP && rows.size() + next.size() <= batchSize) {
+          List<NotificationRow> combined = new ArrayList<>(rows);
+          do {
+            combined.addAll(queue.poll());
+            next = queue.peek();
+          } while (next != null && next != STOP && combined.size() + next.size() <= batchSize);
+          rows = combined;
+        }
+
+        for (int i = 0; i < rows.size(); i = i + batchSize) {
+          List<NotificationRow> chunk = rows.subList(i, Math.min(i + batchSize, rows.size()));
+
+          try {
+            writer.accept(chunk);
+          } catch (RuntimeException e) {
+            // The consumer would wait forever on a dead writer
+            LOG.log(Level.SEVERE, "Unable to write notification batch", e);
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      LOG.log(Level.FINE, "Notification merge writer interrupted", e);
+    }
+  }
+
+  /**
+   * Stop the writer, waiting up to the given time for queued batches to be written.
+   *
+   * @param timeout The maximum time to wait
+   * @param unit The unit of timeout
+   */
+  public void close(long timeout, TimeUnit unit) {
+    if (!queue.offer(STOP)) {
+      thread.interrupt();
+    }
+
+    try {
+      thread.join(Math.max(1, unit.toMillis(timeout)));
+
+      if (thread.isAlive()) {
+        LOG.log(Level.WARNING, "Abandoning {0} queued notification batches", queue.size());
+        thread.interrupt();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public void close() {
+    close(10, TimeUnit.SECONDS);
+  }
+}
@@ -0,0 +1,295 @@
+package org.jlab.jaws.business.service;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.jlab.jaws.business.session.NotificationFacade;
+import org.jlab.jaws.entity.*;
+import org.jlab.jaws.persistence.model.BinaryState;
+import org.jlab.jaws.persistence.model.SuppressedState;
+import org.jlab.kafka.eventsource.EventSourceRecord;
+
+/**
+ * A notification record decoded into the column values written to Oracle.
+ *
+ * <p>The NOTIFICATION merge and the three history writers all bind the same values, so a record is
+ * decoded once and the row shared. Values derived only from the AlarmState are looked up from a
+ * table built once rather than computed per record.
+ *
+ * <p>A record with a null value (a tombstone, the alarm was removed) decodes to a row with only a
+ * name, offset and since; see isTombstone.
+ */
+public final class NotificationRow {
+  private static final Map<AlarmState, StateColumns> STATE_COLUMNS =
+      new EnumMap<>(AlarmState.class);
+
+  static {
+    for (AlarmState state : AlarmState.values()) {
+      STATE_COLUMNS.put(state, new StateColumns(state));
+    }
+  }
+
+  // State columns of a tombstone, all null
+  private static final StateColumns NO_STATE = new StateColumns();
+
+  private final String name;
+  private final long offset;
+  private final java.sql.Date since;
+  private final StateColumns stateColumns;
+  private final String activationType;
+  private final String note;
+  private final String sevr;
+  private final String stat;
+  private final String error;
+
+  private NotificationRow(EventSourceRecord<String, EffectiveNotification> record) {
+    EffectiveNotification value = record.getValue();
+    AlarmActivationUnion union = value == null ? null : value.getActivation();
+    Object activation = union == null ? null : union.getUnion();
+
+    String activationType = value == null ? null : "NotActive";
+    String note = null;
+    String sevr = null;
+    String stat = null;
+    String error = null;
+
+    if (activation instanceof EPICSActivation) {
+      activationType = "EPICS";
+      EPICSActivation epics = (EPICSActivation) activation;
+      sevr = epics.getSevr().name();
+      stat = epics.getStat().name();
+    } else if (activation instanceof NoteActivation) {
+      activationType = "Note";
+      note = ((NoteActivation) activation).getNote();
+    } else if (activation instanceof ChannelErrorActivation) {
+      activationType = "ChannelError";
+      error = ((ChannelErrorActivation) activation).getError();
+    } else if (activation instanceof Activation) {
+      activationType = "Simple";
+    }
+
+    this.name = record.getKey();
+    this.offset = record.getOffset();
+    this.since = new java.sql.Date(record.getTimestamp());
+    this.stateColumns = value == null ? NO_STATE : STATE_COLUMNS.get(value.getState());
+    this.activationType = activationType;
+    this.note = note;
+    this.sevr = sevr;
+    this.stat = stat;
+    this.error = error;
+  }
+
+  public static NotificationRow decode(EventSourceRecord<String, EffectiveNotification> record) {
+    return new NotificationRow(record);
+  }
+
+  public static List<NotificationRow> decode(
+      List<EventSourceRecord<String, EffectiveNotification>> records) {
+    List<NotificationRow> rows = new ArrayList<>(records.size());
+
+    for (EventSourceRecord<String, EffectiveNotification> record : records) {
+      rows.add(new NotificationRow(record));
+    }
+
+    return rows;
+  }
+
+  /**
+   * Collapse rows to the last row for each name, which is all a latest-wins table needs.
+   *
+   * @param rows The rows, in offset order
+   * @return The last row for each name, or rows itself if no name repeats
+   */
+  public static List<NotificationRow> latestPerName(List<NotificationRow> rows) {
+    Map<String, NotificationRow> latest = new HashMap<>(rows.size() * 2);
+
+    for (NotificationRow row : rows) {
+      latest.put(row.name, row);
+    }
+
+    if (latest.size() == rows.size()) {
+      return rows;
+    }
+
+    return new ArrayList<>(latest.values());
+  }
+
+  /**
+   * Return only the rows that aren't tombstones.
+   *
+   * @param rows The rows
+   * @return The rows with a value, or rows itself if none are tombstones
+   */
+  public static List<NotificationRow> withoutTombstones(List<NotificationRow> rows) {
+    List<NotificationRow> values = null;
+
+    for (int i = 0; i < rows.size(); i++) {
+      NotificationRow row = rows.get(i);
+
+      if (row.isTombstone()) {
+        if (values == null) {
+          values = new ArrayList<>(rows.subList(0, i));
+        }
+      } else if (values != null) {
+        values.add(row);
+      }
+    }
+
+    return values == null ? rows : values;
+  }
+
+  /**
+   * @return true if the record value was null, meaning the alarm no longer has a notification
+   */
+  public boolean isTombstone() {
+    return stateColumns == NO_STATE;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public long getOffset() {
+    return offset;
+  }
+
+  public java.sql.Date getSince() {
+    return since;
+  }
+
+  /**
+   * @return The BinaryState name, "Active" or "Normal"
+   */
+  public String getState() {
+    return stateColumns.state;
+  }
+
+  /**
+   * @return "Y" if the state is Normal, otherwise "N"
+   */
+  public String getNormal() {
+    return stateColumns.normal;
+  }
+
+  /**
+   * @return "Y" if the state is not suppressed, otherwise "N"
+   */
+  public String getUnsuppressed() {
+    return stateColumns.unsuppressed;
+  }
+
+  public String getActiveOverride() {
+    return stateColumns.activeOverride;
+  }
+
+  public String getIncitedWith() {
+    return stateColumns.incitedWith;
+  }
+
+  public String getSuppressedWith() {
+    return stateColumns.suppressedWith;
+  }
+
+  /**
+   * @return "Y" if one-shot shelved, otherwise "N"
+   */
+  public String getOneshot() {
+    return stateColumns.oneshot;
+  }
+
+  public String getActivationType() {
+    return activationType;
+  }
+
+  public String getNote() {
+    return note;
+  }
+
+  public String getSevr() {
+    return sevr;
+  }
+
+  public String getStat() {
+    return stat;
+  }
+
+  public String getError() {
+    return error;
+  }
+
+  private static final class StateColumns {
+    private final String state;
+    private final String normal;
+    private final String unsuppressed;
+    private final String activeOverride;
+    private final String incitedWith;
+    private final String suppressedWith;
+    private final String oneshot;
+
+    private StateColumns() {
+      this.state = null;
+      this.normal = null;
+      this.unsuppressed = null;
+      this.activeOverride = null;
+      this.incitedWith = null;
+      this.suppressedWith = null;
+      this.oneshot = null;
+    }
+
+    private StateColumns(AlarmState alarmState) {
+      BinaryState binary = BinaryState.fromAlarmState(alarmState);
+      OverriddenAlarmType override = NotificationFacade.overrideFromAlarmState(alarmState);
+
+      this.state = binary.name();
+      this.normal = BinaryState.Normal == binary ? "Y" : "N";
+      this.unsuppressed =
+          SuppressedState.NOT_SUPPRESSED == SuppressedState.fromAlarmState(alarmState) ? "Y" : "N";
+      this.activeOverride = override == null ? null : override.name();
+      this.incitedWith = incitedWith(alarmState);
+      this.suppressedWith = suppressedWith(alarmState);
+      this.oneshot = AlarmState.NormalOneShotShelved == alarmState ? "Y" : "N";
+    }
+  }
+
+  private static String incitedWith(AlarmState state) {
+    String incitedWith = null;
+
+    switch (state) {
+      case ActiveOffDelayed:
+        incitedWith = "OffDelayed";
+        break;
+      case ActiveLatched:
+        incitedWith = "Latched";
+        break;
+    }
+
+    return incitedWith;
+  }
+
+  private static String suppressedWith(AlarmState state) {
+    String suppressedWith = null;
+
+    switch (state) {
+      case NormalDisabled:
+        suppressedWith = "Disabled";
+        break;
+      case NormalFiltered:
+        suppressedWith = "Filtered";
+        break;
+      case NormalMasked:
+        suppressedWith = "Masked";
+        break;
+      case NormalContinuousShelved:
+      case NormalOneShotShelved:
+        suppressedWith = "Shelved";
+        break;
+      case NormalOnDelayed:
+        suppressedWith = "OnDelayed";
+        break;
+    }
+
+    return suppressedWith;
+  }
+}
@@ -0,0 +1,102 @@
+package org.jlab.jaws.business.service;
+
+import java.util.List;
+import javax.json.Json;
+import javax.json.JsonObjectBuilder;
+
+/**
+ * Chooses how many rows a notification write stage hands Oracle at a time, and tracks the stage's
+ * throughput and how far it trails the Kafka consumer.
+ *
+ * <p>The size is the target write time divided by a moving average of the time per row, clamped to
+ * [minRows, maxRows]. Since a write costs a fixed round trip plus a per row amount, this settles on
+ * the size that takes about the target time: small batches while the database is slow so the
+ * NOTIFICATION table keeps moving, large ones during a storm so fixed costs are amortized.
+ */
+public class NotificationWriteStage {
+  // Weight of the newest sample in the moving average of time per row
+  private static final double ALPHA = 0.3;
+
+  private final long targetNanos;
+  private final int minRows;
+  private final int maxRows;
+
+  private double nanosPerRow = 0;
+  private int batchSize;
+
+  private long writes = 0;
+  private long rows = 0;
+  private long nanos = 0;
+  private long lastWriteNanos = 0;
+  private long lastOffset = -1;
+  private long lastTimestamp = 0;
+  private long lastWrittenAt = 0;
+
+  /**
+   * Create a stage.
+   *
+   * @param targetMillis The time a single write should take
+   * @param minRows The smallest batch size
+   * @param maxRows The largest batch size, and the size used until the first write is measured
+   */
+  public NotificationWriteStage(long targetMillis, int minRows, int maxRows) {
+    this.targetNanos = Math.max(1, targetMillis) * 1_000_000;
+    this.minRows = Math.max(1, minRows);
+    this.maxRows = Math.max(this.minRows, maxRows);
+    this.batchSize = this.maxRows;
+  }
+
+  public synchronized int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * Record a completed write and adjust the batch size.
+   *
+   * @param written The rows written, in offset order
+   * @param elapsedNanos The time the write took
+   */
+  public synchronized void written(List<NotificationRow> written, long elapsedNanos) {
+    if (written.isEmpty()) {
+      return;
+    }
+
+    double sample = (double) elapsedNanos / written.size();
+    nanosPerRow = writes == 0 ? sample : ALPHA * sample + (1 - ALPHA) * nanosPerRow;
+    batchSize = (int) Math.max(minRows, Math.min(maxRows, targetNanos / Math.max(1, nanosPerRow)));
+
+    NotificationRow last = written.get(written.size() - 1);
+
+    writes++;
+    rows = rows + written.size();
+    nanos = nanos + elapsedNanos;
+    lastWriteNanos = elapsedNanos;
+
+    if (last.getOffset() > lastOffset) {
+      lastOffset = last.getOffset();
+      lastTimestamp = last.getSince().getTime();
+    }
+
+    lastWrittenAt = System.currentTimeMillis();
+  }
+
+  /**
+   * Report the stage as JSON.
+   *
+   * @param receivedOffset The offset of the newest record received from Kafka
+   * @param receivedTimestamp The timestamp of the newest record received from Kafka
+   * @return The stage metrics
+   */
+  public synchronized JsonObjectBuilder toJson(long receivedOffset, long receivedTimestamp) {
+    return Json.createObjectBuilder()
+        .add("batchSize", batchSize)
+        .add("writes", writes)
+        .add("rows", rows)
+        .add("rowsPerSecond", nanos == 0 ? 0 : rows * 1_000_000_000L / nanos)
+        .add("lastWriteMillis", lastWriteNanos / 1_000_000)
+        .add("lastOffset", lastOffset)
+        .add("lastWrittenAt", lastWrittenAt)
+        .add("lagRecords", lastOffset < 0 ? receivedOffset + 1 : receivedOffset - lastOffset)
+        .add("lagMillis", lastOffset < 0 ? 0 : Math.max(0, receivedTimestamp - lastTimestamp));
+  }
+}
@@ -5,6 +5,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -12,12 +13,26 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
 import javax.annotation.security.PermitAll;
 import javax.annotation.security.RunAs;
 import javax.ejb.EJB;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Schedule;
 import javax.ejb.Singleton;
 import javax.ejb.Startup;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.enterprise.concurrent.ManagedThreadFactory;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
 import org.jlab.jaws.business.service.BatchNotificationService;
+import org.jlab.jaws.business.service.NotificationHistoryPipeline;
+import org.jlab.jaws.business.service.NotificationMergeQueue;
+import org.jlab.jaws.business.service.NotificationRow;
+import org.jlab.jaws.business.service.NotificationWriteStage;
 import org.jlab.jaws.business.util.KafkaConfig;
 import org.jlab.jaws.clients.EffectiveNotificationConsumer;
 import org.jlab.jaws.entity.EffectiveNotification;
@@ -33,7 +48,68 @@ import org.jlab.kafka.eventsource.EventSourceRecord;
 public class KafkaNotificationFacade {
   private static final Logger LOG = Logger.getLogger(KafkaNotificationFacade.class.getName());
 
+  // Worker threads writing history tables; history for a given alarm is always on the same thread
+  private static final int HISTORY_THREADS = getIntEnv("NOTIFICATION_HISTORY_THREADS", 2);
+
+  // Batches waiting per history thread before the consumer is made to wait
+  private static final int HISTORY_QUEUED_BATCHES =
+      getIntEnv("NOTIFICATION_HISTORY_QUEUED_BATCHES", 100);
+
+  // Attempts at writing a batch of history before it's dropped
+  private static final int HISTORY_ATTEMPTS = getIntEnv("NOTIFICATION_HISTORY_ATTEMPTS", 5);
+
+  // Write NOTIFICATION and history in one transaction per batch on the consumer thread instead
+  private static final boolean SINGLE_TRANSACTION =
+      Boolean.parseBoolean(System.getenv("NOTIFICATION_SINGLE_TRANSACTION"));
+
+  // Kafka batches waiting to be merged before the notification consumer is made to wait
+  private static final int MERGE_QUEUED_BATCHES =
+      getIntEnv("NOTIFICATION_MERGE_QUEUED_BATCHES", 100);
+
+  // Each write to Oracle is sized to take about this long
+  private static final int TARGET_WRITE_MILLIS = getIntEnv("NOTIFICATION_TARGET_WRITE_MILLIS", 500);
+  private static final int MIN_WRITE_ROWS = getIntEnv("NOTIFICATION_MIN_WRITE_ROWS", 100);
+  private static final int MAX_WRITE_ROWS = getIntEnv("NOTIFICATION_MAX_WRITE_ROWS", 10000);
+
+  // Keep the NOTIFICATION table on restart and resume from the checkpoint instead of replaying all
+  private static final boolean WARM_RESTART =
+      Boolean.parseBoolean(System.getenv("NOTIFICATION_WARM_RESTART"));
+
+  // Older checkpoints may be missing tombstones compacted away since (Kafka delete.retention.ms)
+  private static final int WARM_RESTART_MAX_AGE_HOURS =
+      getIntEnv("NOTIFICATION_WARM_RESTART_MAX_AGE_HOURS", 24);
+
   private EffectiveNotificationConsumer notificationConsumer = null;
+  private NotificationMergeQueue mergeQueue = null;
+  private NotificationHistoryPipeline historyPipeline = null;
+
+  // Completed once the notifications they wait for are written, not just received
+  private final List<WaitForNotificationListener> waiters = new CopyOnWriteArrayList<>();
+
+  private final NotificationWriteStage mergeStage =
+      new NotificationWriteStage(TARGET_WRITE_MILLIS, MIN_WRITE_ROWS, MAX_WRITE_ROWS);
+  private final NotificationWriteStage historyStage =
+      new NotificationWriteStage(TARGET_WRITE_MILLIS, MIN_WRITE_ROWS, MAX_WRITE_ROWS);
+
+  // Newest record received from Kafka, written by the consumer thread
+  private volatile long receivedOffset = -1;
+  private volatile long receivedTimestamp = 0;
+  private volatile long receivedAt = 0;
+
+  // Set once the consumer has caught up with the end of the topic
+  private volatile boolean highWaterReached = false;
+
+  // Single transaction mode only: the checkpoint is held before the first batch that failed
+  private volatile long checkpointCeiling = Long.MAX_VALUE;
+
+  // Single transaction mode only: last offset merged with its history
+  private volatile long writtenOffset = -1;
+
+  // Offset the consumer started from, or -1 if the topic was replayed from the beginning
+  private long resumeOffset = -1;
+
+  // Container managed, since an EJB may not create its own threads
+  @Resource ManagedThreadFactory threadFactory;
 
   @EJB AlarmFacade alarmFacade;
   @EJB NotificationFacade notificationFacade;
@@ -42,12 +118,50 @@ public class KafkaNotificationFacade {
   private void init() {
     if (System.getenv("SKIP_NOTIFICATION_MERGE") == null) {
       LOG.log(Level.WARNING, "Monitoring Kafka for notifications");
-      notificationFacade.clearCache();
 
-      final Properties notificationProps = KafkaConfig.getConsumerPropsWithRegistry(-1, false);
+      // NOTIFICATION is merged before history is submitted and a failed merge holds the checkpoint
+      // before it, so the table is at least as current as the checkpoint
+      if (WARM_RESTART) {
+        long warmCheckpoint = getCheckpoint(WARM_RESTART_MAX_AGE_HOURS * 3600L);
+
+        if (warmCheckpoint >= 0) {
+          resumeOffset = warmCheckpoint + 1;
+        } else {
+          LOG.log(
+              Level.WARNING, "No recent notification checkpoint; rebuilding notification cache");
+        }
+      }
+
+      if (resumeOffset < 0) {
+        notificationFacade.clearCache();
+      } else {
+        LOG.log(Level.INFO, "Resuming notifications from offset {0}", resumeOffset);
+      }
+
+      // If the topic is replayed to rebuild NOTIFICATION, history already written is skipped
+      long checkpoint = getCheckpoint();
+      LOG.log(Level.INFO, "Notification history is written through offset {0}", checkpoint);
+      writtenOffset = checkpoint;
+
+      if (!SINGLE_TRANSACTION) {
+        historyPipeline =
+            new NotificationHistoryPipeline(
+                HISTORY_THREADS,
+                HISTORY_QUEUED_BATCHES,
+                HISTORY_ATTEMPTS,
+                historyStage,
+                checkpoint,
+                threadFactory);
+      }
+
+      final Properties notificationProps =
+          KafkaConfig.getConsumerPropsWithRegistry(resumeOffset, false);
       notificationConsumer = new EffectiveNotificationConsumer(notificationProps);
-      EventSourceListener<String, EffectiveNotification> notificationListener =
+      NotificationListener<String, EffectiveNotification> notificationListener =
           new NotificationListener<>();
+      mergeQueue =
+          new NotificationMergeQueue(
+              MERGE_QUEUED_BATCHES, mergeStage, notificationListener::write, threadFactory);
       notificationConsumer.addListener(notificationListener);
       notificationConsumer.start();
     } else {
@@ -60,37 +174,223 @@ public class KafkaNotificationFacade {
     if (notificationConsumer != null) {
       notificationConsumer.close();
     }
+
+    // After the consumer so no more batches arrive while the queued ones are written
+    if (mergeQueue != null) {
+      mergeQueue.close();
+    }
+
+    if (historyPipeline != null) {
+      historyPipeline.close();
+    }
+  }
+
+  /**
+   * Refresh the checkpoint's updated time while everything received is written. A warm restart
+   * trusts a checkpoint only as long as Kafka keeps tombstones, counted from the last time the
+   * checkpoint was known to be current, not from the last notification.
+   *
+   * <p>Outside any transaction, as the checkpoint is saved on its own autocommit connection.
+   */
+  @Schedule(minute = "*/10", hour = "*", persistent = false)
+  @Lock(LockType.READ)
+  @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+  private void refreshCheckpoint() {
+    // Before the consumer catches up there may be older records past the checkpoint
+    if (!highWaterReached) {
+      return;
+    }
+
+    if (historyPipeline != null) {
+      historyPipeline.refreshCheckpoint(receivedOffset);
+    } else if (SINGLE_TRANSACTION
+        && checkpointCeiling == Long.MAX_VALUE
+        && writtenOffset >= 0
+        && writtenOffset >= receivedOffset) {
+      try {
+        new BatchNotificationService().saveCheckpoint(writtenOffset);
+      } catch (SQLException e) {
+        LOG.log(Level.WARNING, "Unable to refresh notification checkpoint", e);
+      }
+    }
+  }
+
+  private long getCheckpoint() {
+    try {
+      return new BatchNotificationService().getCheckpoint();
+    } catch (SQLException e) {
+      LOG.log(Level.SEVERE, "Unable to read notification checkpoint; writing all history", e);
+      return -1;
+    }
+  }
+
+  private long getCheckpoint(long maxAgeSeconds) {
+    try {
+      return new BatchNotificationService().getCheckpoint(maxAgeSeconds);
+    } catch (SQLException e) {
+      LOG.log(Level.SEVERE, "Unable to read notification checkpoint", e);
+      return -1;
+    }
+  }
+
+  private static int getIntEnv(String name, int defaultValue) {
+    String value = System.getenv(name);
+
+    if (value == null) {
+      return defaultValue;
+    }
+
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      LOG.log(Level.WARNING, "Invalid " + name + ", using default", e);
+      return defaultValue;
+    }
   }
 
   class NotificationListener<K, V> implements EventSourceListener<String, EffectiveNotification> {
+    private final BatchNotificationService batchService = new BatchNotificationService();
+
     @Override
     public void batch(
         List<EventSourceRecord<String, EffectiveNotification>> records, boolean highWaterReached) {
+      if (!records.isEmpty()) {
+        EventSourceRecord<String, EffectiveNotification> last = records.get(records.size() - 1);
+        receivedOffset = last.getOffset();
+        receivedTimestamp = last.getTimestamp();
+        receivedAt = System.currentTimeMillis();
+      }
+
+      // After receivedOffset, so a checkpoint refresh waits for these records to be written
+      if (highWaterReached) {
+        KafkaNotificationFacade.this.highWaterReached = true;
+      }
+
+      if (records.isEmpty()) {
+        return;
+      }
+
+      // Decoded once and shared by the NOTIFICATION merge and the history writers
+      List<NotificationRow> rows = NotificationRow.decode(records);
+
+      // Written on the merge thread, combined with other queued batches or split into writes of the
+      // size the merge stage is currently tuned to
+      try {
+        mergeQueue.put(rows);
+      } catch (InterruptedException e) {
+        LOG.log(Level.WARNING, "Interrupted queueing notifications", e);
+        holdCheckpointBefore(rows.get(0).getOffset());
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    private void write(List<NotificationRow> rows) {
+      try {
+        merge(rows);
+      } finally {
+        for (WaitForNotificationListener waiter : waiters) {
+          waiter.written(rows);
+        }
+      }
+    }
+
+    private void merge(List<NotificationRow> rows) {
       try {
-        long start = System.currentTimeMillis();
-        notificationFacade.oracleMerge(records);
-        long end = System.currentTimeMillis();
-
-        // TODO: Consider moving history updates to a separate thread to avoid blocking notification
-        // merge
-        long hStart = System.currentTimeMillis();
-        BatchNotificationService service = new BatchNotificationService();
-        service.oracleInsertNotificationHistory(records);
-        service.oracleMergeActiveHistory(records);
-        service.oracleMergeSuppressedHistory(records);
-        long hEnd = System.currentTimeMillis();
+        long start = System.nanoTime();
+        if (SINGLE_TRANSACTION) {
+          batchService.writeBatch(rows, checkpointCeiling);
+          writtenOffset = rows.get(rows.size() - 1).getOffset();
+        } else {
+          notificationFacade.mergeRows(rows);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        mergeStage.written(rows, elapsed);
 
         LOG.log(
             Level.INFO,
-            "Merged {0} batch notifications in {1} milliseconds, merged history in {2} milliseconds",
-            new Object[] {records.size(), end - start, hEnd - hStart});
-
-      } catch (SQLException e) {
+            SINGLE_TRANSACTION
+                ? "Merged {0} batch notifications with history in one transaction in {1} milliseconds"
+                : "Merged {0} batch notifications in {1} milliseconds",
+            new Object[] {rows.size(), elapsed / 1_000_000});
+      } catch (SQLException | RuntimeException e) {
         LOG.log(Level.SEVERE, "Unable to merge Kafka notifications into Oracle", e);
+        holdCheckpointBefore(rows.get(0).getOffset());
+        return;
+      }
+
+      if (SINGLE_TRANSACTION) {
+        return;
       }
+
+      // History is written by the pipeline so it never delays the NOTIFICATION merge above
+      try {
+        historyPipeline.submit(rows);
+      } catch (InterruptedException e) {
+        LOG.log(Level.WARNING, "Interrupted queueing notification history", e);
+        holdCheckpointBefore(rows.get(0).getOffset());
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Keep the checkpoint before the given offset so a restart (warm or not) writes the records from
+   * it on again.
+   *
+   * @param offset The first offset that wasn't written
+   */
+  private void holdCheckpointBefore(long offset) {
+    if (SINGLE_TRANSACTION) {
+      checkpointCeiling = Math.min(checkpointCeiling, offset - 1);
+    } else {
+      historyPipeline.holdCheckpointBefore(offset);
     }
   }
 
+  /**
+   * Report how far the Oracle writes trail Kafka, and the throughput and current batch size of each
+   * write stage. Each stage's "lagRecords" / "lagMillis" is how far it trails the newest record
+   * received. The consumer's own position against the end of the topic isn't available from the
+   * event source, so "consumer.recordAgeMillis" (how old the newest record was when received) and
+   * "consumer.highWaterReached" stand in: a large age during a storm means the consumer is behind.
+   *
+   * @return The metrics
+   */
+  @PermitAll
+  @Lock(LockType.READ)
+  public JsonObject getMetrics() {
+    long offset = receivedOffset;
+    long timestamp = receivedTimestamp;
+
+    JsonObjectBuilder builder =
+        Json.createObjectBuilder()
+            .add("singleTransaction", SINGLE_TRANSACTION)
+            .add("resumeOffset", resumeOffset)
+            .add(
+                "consumer",
+                Json.createObjectBuilder()
+                    .add("receivedOffset", offset)
+                    .add("receivedAt", receivedAt)
+                    .add("highWaterReached", highWaterReached)
+                    .add("recordAgeMillis", offset < 0 ? 0 : Math.max(0, receivedAt - timestamp)))
+            .add(
+                "merge",
+                mergeStage
+                    .toJson(offset, timestamp)
+                    .add("queuedBatches", mergeQueue == null ? 0 : mergeQueue.getQueuedBatches()));
+
+    if (historyPipeline != null) {
+      builder.add(
+          "history",
+          historyStage
+              .toJson(offset, timestamp)
+              .add("queuedBatches", historyPipeline.getQueuedBatches()));
+    }
+
+    return builder.build();
+  }
+
   /**
    * Wait until the listed alarms receive a notification.
    *
@@ -111,21 +411,19 @@ public class KafkaNotificationFacade {
     return new WaitForNotificationListener(nameSet);
   }
 
-  public class WaitForNotificationListener
-      implements EventSourceListener<String, EffectiveNotification>, AutoCloseable {
+  public class WaitForNotificationListener implements AutoCloseable {
     private final HashSet<String> nameSet;
     private final CompletableFuture<Void> future = new CompletableFuture<>();
 
     private WaitForNotificationListener(HashSet<String> nameSet) {
       this.nameSet = new HashSet<>(nameSet);
-      notificationConsumer.addListener(this);
+      waiters.add(this);
     }
 
-    @Override
-    public void batch(
-        List<EventSourceRecord<String, EffectiveNotification>> records, boolean highWaterReached) {
-      for (EventSourceRecord<String, EffectiveNotification> record : records) {
-        nameSet.remove(record.getKey());
+    // Called by the merge thread once rows are written (or failed to be)
+    private void written(List<NotificationRow> rows) {
+      for (NotificationRow row : rows) {
+        nameSet.remove(row.getName());
       }
 
       if (nameSet.isEmpty()) {
@@ -134,7 +432,7 @@ public class KafkaNotificationFacade {
     }
 
     /**
-     * Wait for the notifications to be received (block).
+     * Wait for the notifications to be received and merged into the NOTIFICATION table (block).
      *
      * @return true if notifications were received, false if Timeout or Exception
      */
@@ -151,7 +449,7 @@ public class KafkaNotificationFacade {
 
     @Override
     public void close() {
-      notificationConsumer.removeListener(this);
+      waiters.remove(this);
     }
   }
 }
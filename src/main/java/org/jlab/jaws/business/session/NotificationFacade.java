@@ -1,21 +1,21 @@
 package org.jlab.jaws.business.session;
 
 import java.math.BigInteger;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
 import java.sql.SQLException;
-import java.sql.Types;
 import java.util.*;
 import java.util.logging.Logger;
 import javax.annotation.security.PermitAll;
 import javax.annotation.security.RolesAllowed;
 import javax.ejb.EJB;
 import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.*;
-import org.jlab.jaws.business.util.OracleUtil;
+import org.jlab.jaws.business.service.BatchNotificationService;
+import org.jlab.jaws.business.service.NotificationRow;
 import org.jlab.jaws.entity.*;
 import org.jlab.jaws.persistence.entity.*;
 import org.jlab.jaws.persistence.model.BinaryState;
@@ -96,115 +96,24 @@ public class NotificationFacade extends AbstractFacade<Notification> {
   }
 
   // Note: Can't restrict to jaws-admin because caller in NotificationFacade RunAs doesn't work
+  // Not in a container transaction; the merge manages its own (staged mode commits explicitly)
   @PermitAll
+  @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
   public void oracleMerge(List<EventSourceRecord<String, EffectiveNotification>> records)
       throws SQLException {
-    final String sql =
-        "MERGE INTO JAWS_OWNER.NOTIFICATION existing "
-            + "                USING "
-            + "                    (SELECT ?  AS name, "
-            + "                ? AS state, "
-            + "                ? AS since, "
-            + "                ? AS active_override, "
-            + "                ? AS activation_type, "
-            + "                ? AS activation_note, "
-            + "                ? AS activation_sevr, "
-            + "                ? AS activation_stat, "
-            + "                ? AS activation_error "
-            + "                    FROM DUAL) a "
-            + "                 ON (a.name = existing.name) "
-            + "                WHEN MATCHED THEN UPDATE "
-            + "                SET "
-            + "                existing.state = a.state, "
-            + "                existing.since = a.since, "
-            + "                    existing.active_override = a.active_override, "
-            + "                    existing.activation_type = a.activation_type, "
-            + "                    existing.activation_note = a.activation_note, "
-            + "                    existing.activation_sevr = a.activation_sevr, "
-            + "                    existing.activation_stat = a.activation_stat, "
-            + "                    existing.activation_error = a.activation_error "
-            + "                WHEN NOT MATCHED THEN INSERT "
-            + "                    (existing.name, existing.state, existing.since, existing.active_override, "
-            + "                        existing.activation_type, existing.activation_note, existing.activation_sevr, "
-            + "                        existing.activation_stat, existing.activation_error) "
-            + "                    VALUES (a.name, a.state, a.since, a.active_override, a.activation_type, "
-            + "                        a.activation_note, a.activation_sevr, a.activation_stat, a.activation_error) ";
-
-    Connection con = null;
-    PreparedStatement stmt = null;
-
-    try {
-      con = OracleUtil.getConnection();
-      stmt = con.prepareStatement(sql);
-
-      for (EventSourceRecord<String, EffectiveNotification> record : records) {
-
-        BinaryState state = BinaryState.fromAlarmState(record.getValue().getState());
-        OverriddenAlarmType override = overrideFromAlarmState(record.getValue().getState());
-        AlarmActivationUnion union = record.getValue().getActivation();
-
-        String activationType = "NotActive";
-        String note = null;
-        String sevr = null;
-        String stat = null;
-        String error = null;
-
-        if (union != null) {
-          if (union.getUnion() instanceof EPICSActivation) {
-            activationType = "EPICS";
-            EPICSActivation epics = (EPICSActivation) union.getUnion();
-            sevr = epics.getSevr().name();
-            stat = epics.getStat().name();
-          } else if (union.getUnion() instanceof NoteActivation) {
-            activationType = "Note";
-            NoteActivation noteObj = (NoteActivation) union.getUnion();
-            note = noteObj.getNote();
-          } else if (union.getUnion() instanceof ChannelErrorActivation) {
-            activationType = "ChannelError";
-            ChannelErrorActivation channel = (ChannelErrorActivation) union.getUnion();
-            error = channel.getError();
-          } else if (union.getUnion() instanceof Activation) {
-            activationType = "Simple";
-          }
-        }
-
-        stmt.setString(1, record.getKey());
-        stmt.setString(2, state.name());
-        stmt.setDate(3, new java.sql.Date(record.getTimestamp()));
-        if (override == null) {
-          stmt.setNull(4, Types.VARCHAR);
-        } else {
-          stmt.setString(4, override.name());
-        }
-        stmt.setString(5, activationType);
-        if (note == null) {
-          stmt.setNull(6, Types.VARCHAR);
-        } else {
-          stmt.setString(6, note);
-        }
-        if (sevr == null) {
-          stmt.setNull(7, Types.VARCHAR);
-        } else {
-          stmt.setString(7, sevr);
-        }
-        if (stat == null) {
-          stmt.setNull(8, Types.VARCHAR);
-        } else {
-          stmt.setString(8, stat);
-        }
-        if (error == null) {
-          stmt.setNull(9, Types.VARCHAR);
-        } else {
-          stmt.setString(9, error);
-        }
-
-        stmt.addBatch();
-      }
+    mergeRows(NotificationRow.decode(records));
+  }
 
-      stmt.executeBatch();
-    } finally {
-      OracleUtil.close(stmt, con);
-    }
+  /**
+   * Merge already decoded rows into the NOTIFICATION table.
+   *
+   * @param rows The rows, in offset order
+   * @throws SQLException If unable to merge
+   */
+  @PermitAll
+  @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+  public void mergeRows(List<NotificationRow> rows) throws SQLException {
+    new BatchNotificationService().mergeNotifications(rows);
   }
 
   public static OverriddenAlarmType overrideFromAlarmState(AlarmState state) {
@@ -1,7 +1,9 @@
 package org.jlab.jaws.business.util;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Types;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.naming.InitialContext;
@@ -29,6 +31,15 @@ public class OracleUtil {
     return source.getConnection();
   }
 
+  public static void setNullableString(PreparedStatement stmt, int index, String value)
+      throws SQLException {
+    if (value == null) {
+      stmt.setNull(index, Types.VARCHAR);
+    } else {
+      stmt.setString(index, value);
+    }
+  }
+
   public static void close(AutoCloseable... resources) {
     if (resources != null) {
       AutoCloseable[] var1 = resources;
@@ -0,0 +1,22 @@
+package org.jlab.jaws.presentation.ws;
+
+import java.util.List;
+import org.jlab.kafka.eventsource.EventSourceRecord;
+
+/** Encodes a batch of records as the data of a single SSE event. */
+interface BatchEncoder {
+
+  /**
+   * Encode the given records.
+   *
+   * @param topic The topic (event) name
+   * @param records The records
+   * @param keyConverter Converts record keys to String
+   * @param <K> The record key type
+   * @return The event data
+   */
+  <K> String encodeBatch(
+      String topic,
+      List<? extends EventSourceRecord<K, ?>> records,
+      SSE.KeyConverter<K> keyConverter);
+}
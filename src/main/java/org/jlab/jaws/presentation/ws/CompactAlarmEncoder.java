@@ -0,0 +1,229 @@
+package org.jlab.jaws.presentation.ws;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SegmentedStringWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.jlab.jaws.entity.*;
+import org.jlab.kafka.eventsource.EventSourceRecord;
+
+/**
+ * Encodes EffectiveAlarm records in the compact format: the slim alarm fields as positional arrays,
+ * with repeated strings (priority, system, location, state) replaced by an index into a string
+ * table. Each event carries the entries of the table its records use.
+ *
+ * <pre>
+ * {"strings":{"0":"P1_CRITICAL","1":"RF","2":"Injector","3":"Active"},
+ *  "records":[["alarm1",0,1,true,[2],3,1520],["alarm2",null,null,null,null,null,1521],
+ *             ["alarm3",null,null,null,null,-1,1522]]}
+ * </pre>
+ *
+ * Each record is [key, priority, system, filterable, locations, state, offset]. An unregistered
+ * alarm has null registration fields, an alarm without a notification a null state, and a tombstone
+ * (deleted alarm) a state of -1.
+ *
+ * <p>String indexes are assigned once for the life of the encoder (the strings are a small, fixed
+ * vocabulary), so a record's row doesn't depend on the batch it's in and is cached by (topic,
+ * offset, key) as in RecordEncoder: a record fanned out by a TopicHub is encoded once, not once per
+ * client.
+ */
+class CompactAlarmEncoder implements BatchEncoder {
+  private static final int TOMBSTONE = -1;
+
+  private final JsonFactory factory = new JsonFactory();
+  private final StringTable strings = new StringTable();
+  private final Map<String, Row> cache;
+
+  /**
+   * Create a new CompactAlarmEncoder.
+   *
+   * @param maxCached The maximum number of rows to cache
+   */
+  CompactAlarmEncoder(int maxCached) {
+    this.cache =
+        Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true) {
+              @Override
+              protected boolean removeEldestEntry(Map.Entry<String, Row> eldest) {
+                return size() > maxCached;
+              }
+            });
+  }
+
+  @Override
+  public <K> String encodeBatch(
+      String topic,
+      List<? extends EventSourceRecord<K, ?>> records,
+      SSE.KeyConverter<K> keyConverter) {
+    List<Row> rows = new ArrayList<>(records.size());
+    BitSet used = new BitSet();
+
+    for (EventSourceRecord<K, ?> record : records) {
+      Row row = encode(topic, keyConverter.toString(record.getKey()), record);
+
+      for (int index : row.strings) {
+        used.set(index);
+      }
+
+      rows.add(row);
+    }
+
+    SegmentedStringWriter out = new SegmentedStringWriter(factory._getBufferRecycler());
+
+    try (JsonGenerator gen = factory.createGenerator(out)) {
+      gen.writeStartObject();
+
+      gen.writeObjectFieldStart("strings");
+      for (int i = used.nextSetBit(0); i >= 0; i = used.nextSetBit(i + 1)) {
+        gen.writeStringField(String.valueOf(i), strings.get(i));
+      }
+      gen.writeEndObject();
+
+      gen.writeArrayFieldStart("records");
+      for (Row row : rows) {
+        gen.writeRawValue(row.fragment);
+      }
+      gen.writeEndArray();
+
+      gen.writeEndObject();
+    } catch (IOException e) {
+      // Writing to memory
+      throw new UncheckedIOException(e);
+    }
+
+    return out.getAndClear();
+  }
+
+  private Row encode(String topic, String key, EventSourceRecord<?, ?> record) {
+    // A filtered listener may send a tombstone in place of a record, so null must not collide
+    String cacheKey =
+        topic + " " + record.getOffset() + " " + key + (record.getValue() == null ? " null" : "");
+
+    Row row = cache.get(cacheKey);
+
+    if (row == null) {
+      row = toRow(key, record);
+      cache.put(cacheKey, row);
+    }
+
+    return row;
+  }
+
+  private Row toRow(String key, EventSourceRecord<?, ?> record) {
+    Object[] fields = new Object[5];
+    List<Integer> used = new ArrayList<>();
+
+    if (!(record.getValue() instanceof EffectiveAlarm)) {
+      fields[4] = TOMBSTONE;
+      return new Row(write(key, fields, record.getOffset()), used);
+    }
+
+    EffectiveAlarm alarm = (EffectiveAlarm) record.getValue();
+    EffectiveRegistration registration = alarm.getRegistration();
+    EffectiveNotification notification = alarm.getNotification();
+
+    if (registration != null && registration.getAction() != null) {
+      AlarmAction action = registration.getAction();
+
+      fields[0] = strings.indexOf(action.getPriority(), used);
+      fields[1] = strings.indexOf(action.getSystem(), used);
+      fields[2] = action.getFilterable();
+    }
+
+    if (registration != null
+        && registration.getAlarm() != null
+        && registration.getAlarm().getLocation() != null) {
+      List<String> locations = registration.getAlarm().getLocation();
+      int[] indexes = new int[locations.size()];
+
+      for (int i = 0; i < indexes.length; i++) {
+        indexes[i] = strings.indexOf(locations.get(i), used);
+      }
+
+      fields[3] = indexes;
+    }
+
+    if (notification != null) {
+      fields[4] = strings.indexOf(notification.getState(), used);
+    }
+
+    return new Row(write(key, fields, record.getOffset()), used);
+  }
+
+  private String write(String key, Object[] fields, long offset) {
+    SegmentedStringWriter out = new SegmentedStringWriter(factory._getBufferRecycler());
+
+    try (JsonGenerator gen = factory.createGenerator(out)) {
+      gen.writeStartArray();
+
+      gen.writeString(key);
+
+      for (Object field : fields) {
+        if (field == null) {
+          gen.writeNull();
+        } else if (field instanceof Integer) {
+          gen.writeNumber((Integer) field);
+        } else if (field instanceof Boolean) {
+          gen.writeBoolean((Boolean) field);
+        } else {
+          int[] indexes = (int[]) field;
+          gen.writeArray(indexes, 0, indexes.length);
+        }
+      }
+
+      gen.writeNumber(offset);
+
+      gen.writeEndArray();
+    } catch (IOException e) {
+      // Writing to memory
+      throw new UncheckedIOException(e);
+    }
+
+    return out.getAndClear();
+  }
+
+  private static class Row {
+    private final String fragment;
+    private final int[] strings;
+
+    private Row(String fragment, List<Integer> strings) {
+      this.fragment = fragment;
+      this.strings = strings.stream().mapToInt(Integer::intValue).toArray();
+    }
+  }
+
+  private static class StringTable {
+    private final List<String> list = new ArrayList<>();
+    private final Map<String, Integer> index = new HashMap<>();
+
+    private synchronized Integer indexOf(Object value, List<Integer> used) {
+      if (value == null) {
+        return null;
+      }
+
+      Integer i =
+          index.computeIfAbsent(
+              value.toString(),
+              s -> {
+                list.add(s);
+                return list.size() - 1;
+              });
+
+      used.add(i);
+
+      return i;
+    }
+
+    private synchronized String get(int i) {
+      return list.get(i);
+    }
+  }
+}
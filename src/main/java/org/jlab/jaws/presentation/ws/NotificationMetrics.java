@@ -0,0 +1,24 @@
+package org.jlab.jaws.presentation.ws;
+
+import javax.ejb.EJB;
+import javax.enterprise.context.RequestScoped;
+import javax.json.JsonObject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import org.jlab.jaws.business.session.KafkaNotificationFacade;
+
+/** Reports how far the NOTIFICATION and history tables trail the notifications topic. */
+@RequestScoped
+@Path("/notifications")
+public class NotificationMetrics {
+  @EJB KafkaNotificationFacade kafkaNotificationFacade;
+
+  @GET
+  @Path("metrics")
+  @Produces(MediaType.APPLICATION_JSON)
+  public JsonObject metrics() {
+    return kafkaNotificationFacade.getMetrics();
+  }
+}
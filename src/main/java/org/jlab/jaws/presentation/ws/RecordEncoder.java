@@ -0,0 +1,141 @@
+package org.jlab.jaws.presentation.ws;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SegmentedStringWriter;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jlab.kafka.eventsource.EventSourceRecord;
+
+/**
+ * Encodes records to their SSE JSON fragment for one mixin profile, remembering recent results.
+ *
+ * <p>Records fanned out by a TopicHub are the same instances for every subscriber, so caching the
+ * fragment by (topic, offset, key) means a record is serialized once per profile instead of once
+ * per connected client. The cache is a bounded LRU.
+ */
+public class RecordEncoder implements BatchEncoder {
+  private static final Logger LOG = Logger.getLogger(RecordEncoder.class.getName());
+
+  private final ObjectWriter writer;
+  private final Map<String, String> cache;
+
+  /**
+   * Create a new RecordEncoder.
+   *
+   * @param writer The writer configured for the profile
+   * @param maxCached The maximum number of fragments to cache
+   */
+  public RecordEncoder(ObjectWriter writer, int maxCached) {
+    this.writer = writer;
+    this.cache =
+        Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true) {
+              @Override
+              protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > maxCached;
+              }
+            });
+  }
+
+  /**
+   * Return the JSON fragment for a record, serializing it only if not already cached.
+   *
+   * @param topic The topic (event) name
+   * @param key The record key as a String
+   * @param record The record
+   * @return The JSON fragment
+   */
+  public String encode(String topic, String key, EventSourceRecord<?, ?> record) {
+    // A filtered listener may send a tombstone in place of a record, so null must not collide
+    String cacheKey =
+        topic + " " + record.getOffset() + " " + key + (record.getValue() == null ? " null" : "");
+
+    String fragment = cache.get(cacheKey);
+
+    if (fragment == null) {
+      fragment = serialize(key, record);
+      cache.put(cacheKey, fragment);
+    }
+
+    return fragment;
+  }
+
+  /**
+   * Return a JSON array of the fragments of the given records. The array is streamed into a pooled
+   * buffer instead of being concatenated.
+   *
+   * @param topic The topic (event) name
+   * @param records The records
+   * @param keyConverter Converts record keys to String
+   * @param <K> The record key type
+   * @return The JSON array
+   */
+  @Override
+  public <K> String encodeBatch(
+      String topic,
+      List<? extends EventSourceRecord<K, ?>> records,
+      SSE.KeyConverter<K> keyConverter) {
+    JsonFactory factory = writer.getFactory();
+    SegmentedStringWriter out = new SegmentedStringWriter(factory._getBufferRecycler());
+
+    try (JsonGenerator gen = factory.createGenerator(out)) {
+      gen.writeStartArray();
+
+      for (EventSourceRecord<K, ?> record : records) {
+        gen.writeRawValue(encode(topic, keyConverter.toString(record.getKey()), record));
+      }
+
+      gen.writeEndArray();
+    } catch (IOException e) {
+      // Writing to memory
+      throw new UncheckedIOException(e);
+    }
+
+    return out.getAndClear();
+  }
+
+  private String serialize(String key, EventSourceRecord<?, ?> record) {
+    try {
+      return serialize(key, record.getValue(), record.getOffset());
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to serialize record", e);
+    }
+
+    try {
+      return serialize(key, null, record.getOffset());
+    } catch (IOException e) {
+      // Writing to memory
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private String serialize(String key, Object value, long offset) throws IOException {
+    JsonFactory factory = writer.getFactory();
+    SegmentedStringWriter out = new SegmentedStringWriter(factory._getBufferRecycler());
+
+    try (JsonGenerator gen = factory.createGenerator(out)) {
+      gen.writeStartObject();
+      gen.writeStringField("key", key);
+      gen.writeFieldName("value");
+
+      if (value == null) {
+        gen.writeNull();
+      } else {
+        writer.writeValue(gen, value);
+      }
+
+      gen.writeNumberField("offset", offset);
+      gen.writeEndObject();
+    }
+
+    return out.getAndClear();
+  }
+}
@@ -1,24 +1,44 @@
 package org.jlab.jaws.presentation.ws;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import java.io.IOException;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.PreDestroy;
+import javax.ejb.EJB;
 import javax.enterprise.context.ApplicationScoped;
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 import javax.servlet.annotation.WebListener;
+import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.*;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.sse.OutboundSseEvent;
 import javax.ws.rs.sse.Sse;
 import javax.ws.rs.sse.SseEventSink;
+import org.jlab.jaws.business.session.LocationFacade;
 import org.jlab.jaws.business.util.KafkaConfig;
 import org.jlab.jaws.clients.*;
 import org.jlab.jaws.entity.*;
+import org.jlab.jaws.persistence.entity.Location;
 import org.jlab.jaws.persistence.json.*;
 import org.jlab.kafka.eventsource.*;
 
@@ -26,15 +46,62 @@ import org.jlab.kafka.eventsource.*;
 @Path("/sse")
 @WebListener
 public class SSE implements ServletContextListener {
-  // max 10 concurrent users
-  private final ExecutorService exec = Executors.newFixedThreadPool(10);
+  private static final Logger LOG = Logger.getLogger(SSE.class.getName());
+
+  private static final int MAX_CONNECTIONS = getIntEnv("SSE_MAX_CONNECTIONS", 500);
+
+  // Events waiting to be written to a single client before it's considered too slow to keep up
+  private static final int MAX_QUEUED_EVENTS = getIntEnv("SSE_MAX_QUEUED_EVENTS", 1000);
+
+  // Smallest maxBatchRecords honored, so a snapshot isn't split into thousands of tiny events
+  private static final int MIN_BATCH_RECORDS = 100;
+
+  // Threads writing queued events to clients, shared by all connections
+  private static final int SENDER_THREADS = getIntEnv("SSE_SENDER_THREADS", 8);
+
+  // Time allowed on shutdown for queued events, ending with the reconnect hint, to be written
+  private static final int DRAIN_MILLIS = getIntEnv("SSE_DRAIN_MILLIS", 5000);
+
+  // Clients are told to reconnect after a random delay up to this (plus a second) so that a
+  // redeploy doesn't have every display reconnect for a snapshot at the same instant
+  private static final int RECONNECT_JITTER_MILLIS =
+      getIntEnv("SSE_RECONNECT_JITTER_MILLIS", 15000);
+
+  // Per mixin profile; enough to hold the compacted snapshot of the largest topic
+  private static final int MAX_CACHED_RECORDS = 50000;
+
+  // Single character topic codes used in the composite event id, for example "a1520,n1533"
+  private static final Map<String, Character> TOPIC_CODES =
+      Map.of(
+          "alarm", 'a',
+          "activation", 'c',
+          "system", 's',
+          "action", 't',
+          "instance", 'i',
+          "location", 'l',
+          "notification", 'n',
+          "override", 'o',
+          "registration", 'r');
+
+  private final Set<Subscription> subscriptions = ConcurrentHashMap.newKeySet();
+  private final AtomicLong slowClientEvictions = new AtomicLong();
+  private final AtomicLong droppedEvents = new AtomicLong();
+  private final AtomicLong coalescedRecords = new AtomicLong();
+  private final AtomicLong subscriptionIds = new AtomicLong();
+  private final SseMetrics metrics = new SseMetrics();
+  private volatile boolean accepting = true;
+  private ScheduledExecutorService heartbeat = null;
+  private volatile ExecutorService sender = null;
   private Sse sse;
 
-  private final List<Mixin> SLIM_EFFECTIVE_ALARM_MIXINS = new ArrayList<>();
+  @EJB LocationFacade locationFacade;
+
+  // Package access so benchmarks can build encoders for the alarm profiles
+  final List<Mixin> SLIM_EFFECTIVE_ALARM_MIXINS = new ArrayList<>();
   private final List<Mixin> SLIM_NOTIFICATION_MIXINS = new ArrayList<>();
   private final List<Mixin> SLIM_REGISTRATION_MIXINS = new ArrayList<>();
 
-  private final List<Mixin> EFFECTIVE_ALARM_MIXINS = new ArrayList<>();
+  final List<Mixin> EFFECTIVE_ALARM_MIXINS = new ArrayList<>();
   private final List<Mixin> ACTIVATION_MIXINS = new ArrayList<>();
   private final List<Mixin> ACTION_MIXINS = new ArrayList<>();
   private final List<Mixin> ALARM_MIXINS = new ArrayList<>();
@@ -44,8 +111,63 @@ public class SSE implements ServletContextListener {
   private final List<Mixin> OVERRIDE_MIXINS = new ArrayList<>();
   private final List<Mixin> REGISTRATION_MIXINS = new ArrayList<>();
 
+  // Immutable (thread-safe) writers are built once per mixin profile since configuring an
+  // ObjectMapper forces Jackson to rebuild serializers and introspect the Avro classes.  Each
+  // encoder also caches encoded records so a record is serialized once, not once per client.
+  private final RecordEncoder SLIM_EFFECTIVE_ALARM_ENCODER;
+  private final RecordEncoder EFFECTIVE_ALARM_ENCODER;
+  private final RecordEncoder ACTIVATION_ENCODER;
+  private final RecordEncoder ACTION_ENCODER;
+  private final RecordEncoder ALARM_ENCODER;
+  private final RecordEncoder LOCATION_ENCODER;
+  private final RecordEncoder SYSTEM_ENCODER;
+  private final RecordEncoder NOTIFICATION_ENCODER;
+  private final RecordEncoder OVERRIDE_ENCODER;
+  private final RecordEncoder REGISTRATION_ENCODER;
+  private final BatchEncoder COMPACT_ALARM_ENCODER = new CompactAlarmEncoder(MAX_CACHED_RECORDS);
+
   private final StringKeyConverter strKeyConv = new StringKeyConverter();
 
+  // One shared consumer per topic for compacted (and active only) snapshots
+  private final TopicHub<String, EffectiveAlarm> alarmHub =
+      new TopicHub<>(
+          "alarm",
+          () -> new EffectiveAlarmConsumer(KafkaConfig.getConsumerPropsWithRegistry(-1, true)),
+          value -> isActiveState(value.getNotification().getState()));
+  private final TopicHub<String, EffectiveNotification> notificationHub =
+      new TopicHub<>(
+          "notification",
+          () ->
+              new EffectiveNotificationConsumer(KafkaConfig.getConsumerPropsWithRegistry(-1, true)),
+          value -> isActiveState(value.getState()));
+  private final TopicHub<String, AlarmActivationUnion> activationHub =
+      new TopicHub<>(
+          "activation",
+          () -> new ActivationConsumer(KafkaConfig.getConsumerPropsWithRegistry(-1, true)),
+          value -> isActiveUnion(value.getUnion()));
+  private final TopicHub<String, AlarmSystem> systemHub =
+      new TopicHub<>("system", () -> new SystemConsumer(KafkaConfig.getConsumerProps(-1, true)));
+  private final TopicHub<String, AlarmAction> actionHub =
+      new TopicHub<>(
+          "action", () -> new ActionConsumer(KafkaConfig.getConsumerPropsWithRegistry(-1, true)));
+  private final TopicHub<String, Alarm> instanceHub =
+      new TopicHub<>(
+          "instance", () -> new AlarmConsumer(KafkaConfig.getConsumerPropsWithRegistry(-1, true)));
+  private final TopicHub<String, AlarmLocation> locationHub =
+      new TopicHub<>(
+          "location",
+          () -> new LocationConsumer(KafkaConfig.getConsumerPropsWithRegistry(-1, true)));
+  private final TopicHub<AlarmOverrideKey, AlarmOverrideUnion> overrideHub =
+      new TopicHub<>(
+          "override",
+          () -> new OverrideConsumer(KafkaConfig.getConsumerPropsWithRegistry(-1, true)));
+  private final TopicHub<String, EffectiveRegistration> registrationHub =
+      new TopicHub<>(
+          "registration",
+          () ->
+              new EffectiveRegistrationConsumer(
+                  KafkaConfig.getConsumerPropsWithRegistry(-1, true)));
+
   {
     ACTIVATION_MIXINS.add(new Mixin(AlarmActivationUnion.class, AlarmActivationMixin.class));
     ACTIVATION_MIXINS.add(new Mixin(Activation.class, ActivationMixin.class));
@@ -102,19 +224,169 @@ public class SSE implements ServletContextListener {
     SLIM_EFFECTIVE_ALARM_MIXINS.add(new Mixin(EffectiveAlarm.class, EffectiveAlarmMixin.class));
     SLIM_EFFECTIVE_ALARM_MIXINS.addAll(SLIM_NOTIFICATION_MIXINS);
     SLIM_EFFECTIVE_ALARM_MIXINS.addAll(SLIM_REGISTRATION_MIXINS);
+
+    SLIM_EFFECTIVE_ALARM_ENCODER = createEncoder(EffectiveAlarm.class, SLIM_EFFECTIVE_ALARM_MIXINS);
+    EFFECTIVE_ALARM_ENCODER = createEncoder(EffectiveAlarm.class, EFFECTIVE_ALARM_MIXINS);
+    ACTIVATION_ENCODER = createEncoder(AlarmActivationUnion.class, ACTIVATION_MIXINS);
+    ACTION_ENCODER = createEncoder(AlarmAction.class, ACTION_MIXINS);
+    ALARM_ENCODER = createEncoder(Alarm.class, ALARM_MIXINS);
+    LOCATION_ENCODER = createEncoder(AlarmLocation.class, LOCATION_MIXINS);
+    SYSTEM_ENCODER = createEncoder(AlarmSystem.class, SYSTEM_MIXINS);
+    NOTIFICATION_ENCODER = createEncoder(EffectiveNotification.class, NOTIFICATION_MIXINS);
+    OVERRIDE_ENCODER = createEncoder(AlarmOverrideUnion.class, OVERRIDE_MIXINS);
+    REGISTRATION_ENCODER = createEncoder(EffectiveRegistration.class, REGISTRATION_MIXINS);
+  }
+
+  static boolean isActiveState(AlarmState state) {
+    return state == AlarmState.Active
+        || state == AlarmState.ActiveLatched
+        || state == AlarmState.ActiveOffDelayed;
+  }
+
+  static boolean isActiveUnion(Object union) {
+    return union instanceof EPICSActivation
+        || union instanceof NoteActivation
+        || union instanceof Activation;
+  }
+
+  private static RecordEncoder createEncoder(Class<?> type, List<Mixin> mixins) {
+    return createEncoder(type, mixins, MAX_CACHED_RECORDS);
+  }
+
+  /**
+   * Create an encoder for the given root type with the given mixins applied. The root serializer is
+   * resolved eagerly so the first client doesn't pay for it.
+   *
+   * @param type The root type
+   * @param mixins The mixins
+   * @param maxCached The maximum number of encoded records to cache
+   * @return The encoder
+   */
+  static RecordEncoder createEncoder(Class<?> type, List<Mixin> mixins, int maxCached) {
+    ObjectMapper mapper = new ObjectMapper();
+
+    for (Mixin m : mixins) {
+      mapper.addMixIn(m.target, m.mixinSource);
+    }
+
+    return new RecordEncoder(mapper.writerFor(type), maxCached);
+  }
+
+  static int getIntEnv(String name, int defaultValue) {
+    String value = System.getenv(name);
+
+    if (value == null) {
+      return defaultValue;
+    }
+
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      LOG.log(Level.WARNING, "Invalid " + name + ", using default", e);
+      return defaultValue;
+    }
   }
 
   @Override
   public void contextDestroyed(ServletContextEvent event) {
-    System.err.println("Attempting to stop executor service");
+    shutdown();
+  }
 
-    exec.shutdownNow();
+  /**
+   * Drain and release all connections. New connections are refused, each client is sent a reconnect
+   * event with a jittered retry hint (honored by the browser EventSource) behind anything already
+   * queued, and queues are given DRAIN_MILLIS to empty. Connections and consumers are then closed
+   * in parallel.
+   */
+  @PreDestroy
+  public void shutdown() {
+    synchronized (this) {
+      if (!accepting) {
+        return;
+      }
 
-    try {
-      exec.awaitTermination(8, TimeUnit.SECONDS);
-    } catch (InterruptedException e) {
-      System.err.println("Timeout while awaiting shutdown");
-      e.printStackTrace();
+      accepting = false;
+
+      if (heartbeat != null) {
+        // Not shutdownNow: a ping or flush in progress is allowed to finish
+        heartbeat.shutdown();
+        heartbeat = null;
+      }
+    }
+
+    long start = System.currentTimeMillis();
+    int clients = subscriptions.size();
+
+    for (Subscription subscription : subscriptions) {
+      // Stopping the heartbeat cancelled the flush timer, so send what's pending now
+      subscription.flush();
+      subscription.send(reconnectEvent());
+    }
+
+    long deadline = start + DRAIN_MILLIS;
+    int undrained = awaitDrained(deadline);
+    long drained = System.currentTimeMillis();
+
+    subscriptions.parallelStream()
+        .forEach(s -> disconnect(s, SseMetrics.DisconnectReason.SHUTDOWN));
+
+    List.of(
+            alarmHub,
+            notificationHub,
+            activationHub,
+            systemHub,
+            actionHub,
+            instanceHub,
+            locationHub,
+            overrideHub,
+            registrationHub)
+        .parallelStream()
+        .forEach(TopicHub::close);
+
+    synchronized (this) {
+      if (sender != null) {
+        sender.shutdown();
+        sender = null;
+      }
+    }
+
+    LOG.log(
+        Level.INFO,
+        "SSE shutdown: {0} clients drained in {1} ms ({2} not drained), connections and consumers"
+            + " closed in {3} ms",
+        new Object[] {clients, drained - start, undrained, System.currentTimeMillis() - drained});
+  }
+
+  private OutboundSseEvent reconnectEvent() {
+    long retry = 1000 + ThreadLocalRandom.current().nextInt(Math.max(1, RECONNECT_JITTER_MILLIS));
+
+    return sse.newEventBuilder()
+        .name("reconnect")
+        .reconnectDelay(retry)
+        .data(String.valueOf(retry))
+        .build();
+  }
+
+  private int awaitDrained(long deadline) {
+    while (true) {
+      int undrained = 0;
+
+      for (Subscription subscription : subscriptions) {
+        if (!subscription.isDrained()) {
+          undrained++;
+        }
+      }
+
+      if (undrained == 0 || System.currentTimeMillis() >= deadline) {
+        return undrained;
+      }
+
+      try {
+        Thread.sleep(50);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return undrained;
+      }
     }
   }
 
@@ -130,7 +402,13 @@ public class SSE implements ServletContextListener {
    * @param entitiesCsv Comma separted values declaring the entities to monitor
    * @param initiallyActiveOnlyStr If "true", then EffectiveAlarm, EffectiveNotification, and
    *     Activation records before highwater are only sent if an Active state; after highwater all
-   *     records are sent (so inactivation is provided)
+   *     records are sent (so inactivation is provided). The other topics have no active state so
+   *     are sent a compacted snapshot instead (an override in the compacted snapshot is in effect)
+   * @param initiallyCompactedOnlyStr If "true", then every topic is sent only the latest record per
+   *     key before highwater instead of the full topic history
+   * @param format If "compact", then EffectiveAlarm events are sent in the compact format (see
+   *     CompactAlarmEncoder) with only the slim fields; other topics are always sent as JSON
+   *     records
    * @param alarmIndex The starting EffectiveAlarm index or -1 to receive all records
    * @param activationIndex The starting AlarmActivation index or -1 to receive all records
    * @param systemIndex The starting AlarmSystem index or -1 to receive all records
@@ -140,11 +418,25 @@ public class SSE implements ServletContextListener {
    * @param notificationIndex The starting EffectiveNotification index or -1 to receive all records
    * @param overrideIndex The starting AlarmOverride index or -1 to receive all records
    * @param registrationIndex The starting AlarmRegistration index or -1 to receive all records
+   * @param maxBatchRecords The maximum number of records per event (snapshots are split into
+   *     multiple events followed by the highwatermark event), or 0 for no limit; values below 100
+   *     are raised to 100
+   * @param coalesceMillis If greater than 0, then records after highwater are buffered for this
+   *     many milliseconds keeping only the latest record per key; 0 to send every record at once
+   * @param locationNames If provided, EffectiveAlarm and EffectiveRegistration records are only
+   *     sent if in one of these locations or a child location (unregistered and unfilterable alarms
+   *     are always sent)
+   * @param systemNames If provided, EffectiveAlarm and EffectiveRegistration records are only sent
+   *     if in one of these systems (unregistered and unfilterable alarms are always sent)
+   * @param lastEventId The id of the last event received, sent by the browser on reconnect. Each
+   *     topic in the id resumes from the offset it carries (overriding the topic index), and is
+   *     sent only the keys changed since instead of a full snapshot
    */
   @GET
   @Produces(MediaType.SERVER_SENT_EVENTS)
   public void listen(
       @Context final SseEventSink sink,
+      @Context final HttpServletRequest request,
       @QueryParam("entitiesCsv")
           @DefaultValue(
               "alarm,activation,system,action,instance,location,notification,override,registration")
@@ -152,6 +444,7 @@ public class SSE implements ServletContextListener {
       @QueryParam("initiallyActiveOnly") @DefaultValue("false") String initiallyActiveOnlyStr,
       @QueryParam("initiallyCompactedOnly") @DefaultValue("false") String initiallyCompactedOnlyStr,
       @QueryParam("slimAlarms") @DefaultValue("false") String slimAlarmsStr,
+      @QueryParam("format") @DefaultValue("json") String format,
       @QueryParam("alarmIndex") @DefaultValue("-1") long alarmIndex,
       @QueryParam("activationIndex") @DefaultValue("-1") long activationIndex,
       @QueryParam("systemIndex") @DefaultValue("-1") long systemIndex,
@@ -160,7 +453,12 @@ public class SSE implements ServletContextListener {
       @QueryParam("locationIndex") @DefaultValue("-1") long locationIndex,
       @QueryParam("notificationIndex") @DefaultValue("-1") long notificationIndex,
       @QueryParam("overrideIndex") @DefaultValue("-1") long overrideIndex,
-      @QueryParam("registrationIndex") @DefaultValue("-1") long registrationIndex) {
+      @QueryParam("registrationIndex") @DefaultValue("-1") long registrationIndex,
+      @QueryParam("maxBatchRecords") @DefaultValue("1000") int maxBatchRecords,
+      @QueryParam("coalesceMillis") @DefaultValue("0") int coalesceMillis,
+      @QueryParam("location") List<String> locationNames,
+      @QueryParam("system") List<String> systemNames,
+      @HeaderParam(HttpHeaders.LAST_EVENT_ID_HEADER) String lastEventId) {
     System.err.println(
         "Proxy connected: "
             + "entitiesCsv: ("
@@ -171,6 +469,8 @@ public class SSE implements ServletContextListener {
             + initiallyCompactedOnlyStr
             + ", slimAlarms: "
             + slimAlarmsStr
+            + ", format: "
+            + format
             + ", alarmIndex: "
             + alarmIndex
             + ", activationIndex: "
@@ -188,9 +488,33 @@ public class SSE implements ServletContextListener {
             + ", overrideIndex: "
             + overrideIndex
             + ", registrationIndex: "
-            + registrationIndex);
-
-    final boolean initiallyActiveOnly = ("true".equals(initiallyActiveOnlyStr));
+            + registrationIndex
+            + ", maxBatchRecords: "
+            + maxBatchRecords
+            + ", coalesceMillis: "
+            + coalesceMillis
+            + ", location: "
+            + locationNames
+            + ", system: "
+            + systemNames
+            + ", lastEventId: "
+            + lastEventId);
+
+    final Map<String, Long> resumeOffsets = parseEventId(lastEventId);
+
+    alarmIndex = resumeOffsets.getOrDefault("alarm", alarmIndex);
+    activationIndex = resumeOffsets.getOrDefault("activation", activationIndex);
+    systemIndex = resumeOffsets.getOrDefault("system", systemIndex);
+    actionIndex = resumeOffsets.getOrDefault("action", actionIndex);
+    instanceIndex = resumeOffsets.getOrDefault("instance", instanceIndex);
+    locationIndex = resumeOffsets.getOrDefault("location", locationIndex);
+    notificationIndex = resumeOffsets.getOrDefault("notification", notificationIndex);
+    overrideIndex = resumeOffsets.getOrDefault("override", overrideIndex);
+    registrationIndex = resumeOffsets.getOrDefault("registration", registrationIndex);
+
+    // A resumed client already holds state, so it needs every change (including inactivation)
+    final boolean initiallyActiveOnly =
+        ("true".equals(initiallyActiveOnlyStr)) && resumeOffsets.isEmpty();
     final boolean initiallyCompactedOnly = ("true".equals(initiallyCompactedOnlyStr));
     final boolean slimAlarms = ("true".equals(slimAlarmsStr));
 
@@ -221,253 +545,1082 @@ public class SSE implements ServletContextListener {
       return;
     }
 
-    exec.execute(
-        new Runnable() {
-
-          @Override
-          public void run() {
-            final Properties alarmProps =
-                KafkaConfig.getConsumerPropsWithRegistry(
-                    alarmIndex, initiallyActiveOnly || initiallyCompactedOnly);
-            final Properties activationProps =
-                KafkaConfig.getConsumerPropsWithRegistry(
-                    activationIndex, initiallyActiveOnly || initiallyCompactedOnly);
-            final Properties systemProps =
-                KafkaConfig.getConsumerProps(systemIndex, initiallyCompactedOnly);
-            final Properties actionProps =
-                KafkaConfig.getConsumerPropsWithRegistry(actionIndex, initiallyCompactedOnly);
-            final Properties instanceProps =
-                KafkaConfig.getConsumerPropsWithRegistry(instanceIndex, initiallyCompactedOnly);
-            final Properties locationProps =
-                KafkaConfig.getConsumerPropsWithRegistry(locationIndex, initiallyCompactedOnly);
-            final Properties notificationProps =
-                KafkaConfig.getConsumerPropsWithRegistry(
-                    notificationIndex, initiallyActiveOnly || initiallyCompactedOnly);
-            final Properties overrideProps =
-                KafkaConfig.getConsumerPropsWithRegistry(overrideIndex, initiallyCompactedOnly);
-            final Properties registrationProps =
-                KafkaConfig.getConsumerPropsWithRegistry(registrationIndex, initiallyCompactedOnly);
-
-            try (EffectiveAlarmConsumer alarmConsumer = new EffectiveAlarmConsumer(alarmProps);
-                ActivationConsumer activationConsumer = new ActivationConsumer(activationProps);
-                SystemConsumer systemConsumer = new SystemConsumer(systemProps);
-                ActionConsumer actionConsumer = new ActionConsumer(actionProps);
-                AlarmConsumer instanceConsumer = new AlarmConsumer(instanceProps);
-                LocationConsumer locationConsumer = new LocationConsumer(locationProps);
-                EffectiveNotificationConsumer notificationConsumer =
-                    new EffectiveNotificationConsumer(notificationProps);
-                OverrideConsumer overrideConsumer = new OverrideConsumer(overrideProps);
-                EffectiveRegistrationConsumer registrationConsumer =
-                    new EffectiveRegistrationConsumer(registrationProps)) {
-              EventSourceListener<String, EffectiveAlarm> alarmListener;
-              EventSourceListener<String, EffectiveNotification> notificationListener;
-              EventSourceListener<String, AlarmActivationUnion> activationListener;
-
-              // If both ActiveOnly and compactedOnly then compactedOnly has precedence
-              if (initiallyActiveOnly) {
-                alarmListener = new AlarmIAOListener(sink);
-                notificationListener = new NotificationIAOListener(sink);
-                activationListener = new ActivationIAOListener(sink);
-              }
-
-              if (initiallyCompactedOnly) {
-                if (slimAlarms) {
-                  alarmListener =
-                      new CompactedListener<>(
-                          sink, "alarm", strKeyConv, SLIM_EFFECTIVE_ALARM_MIXINS);
+    if (!accepting) {
+      sink.send(reconnectEvent());
+      sink.close();
+      return;
+    }
+
+    if (subscriptions.size() >= MAX_CONNECTIONS) {
+      metrics.connectionsRejected.increment();
+      sink.send(
+          sse.newEvent(
+              "error", "Too many connections (max " + MAX_CONNECTIONS + "), try again later"));
+      sink.close();
+      return;
+    }
+
+    final AlarmFilter filter;
+
+    try {
+      filter = new AlarmFilter(materializeLocations(locationNames), nonBlank(systemNames));
+    } catch (IllegalArgumentException e) {
+      sink.send(sse.newEvent("error", e.getMessage()));
+      sink.close();
+      return;
+    }
+
+    final BatchEncoder alarmEncoder;
+
+    if ("compact".equals(format)) {
+      alarmEncoder = COMPACT_ALARM_ENCODER;
+    } else if (slimAlarms) {
+      alarmEncoder = SLIM_EFFECTIVE_ALARM_ENCODER;
+    } else {
+      alarmEncoder = EFFECTIVE_ALARM_ENCODER;
+    }
+
+    if (!startDelivery()) {
+      sink.send(reconnectEvent());
+      sink.close();
+      return;
+    }
+
+    final Subscription subscription =
+        new Subscription(
+            sink, maxBatchRecords, coalesceMillis, request.getRemoteAddr(), entitiesCsv);
+
+    subscriptions.add(subscription);
+    metrics.connectionsAccepted.increment();
+
+    subscription.resumeFrom("alarm", alarmIndex);
+    subscription.resumeFrom("activation", activationIndex);
+    subscription.resumeFrom("system", systemIndex);
+    subscription.resumeFrom("action", actionIndex);
+    subscription.resumeFrom("instance", instanceIndex);
+    subscription.resumeFrom("location", locationIndex);
+    subscription.resumeFrom("notification", notificationIndex);
+    subscription.resumeFrom("override", overrideIndex);
+    subscription.resumeFrom("registration", registrationIndex);
+
+    try {
+      // If both ActiveOnly and compactedOnly then compactedOnly has precedence.  Either way
+      // the snapshot is served from the shared hub instead of a dedicated consumer.
+      if (alarm) {
+        if (initiallyCompactedOnly) {
+          subscription.subscribe(
+              alarmHub,
+              filter.alarms(
+                  new CompactedListener<>(subscription, "alarm", strKeyConv, alarmEncoder),
+                  alarmIndex >= 0),
+              alarmIndex);
+        } else if (initiallyActiveOnly) {
+          subscription.subscribeActive(
+              alarmHub,
+              filter.alarms(
+                  new CompactedListener<>(subscription, "alarm", strKeyConv, alarmEncoder),
+                  alarmIndex >= 0),
+              alarmIndex);
+        } else {
+          subscription.consume(
+              new EffectiveAlarmConsumer(
+                  KafkaConfig.getConsumerPropsWithRegistry(alarmIndex, false)),
+              filter.alarms(
+                  new ESListener<>(subscription, "alarm", strKeyConv, alarmEncoder),
+                  alarmIndex >= 0));
+        }
+      }
+
+      if (notification) {
+        if (initiallyCompactedOnly) {
+          subscription.subscribe(
+              notificationHub,
+              new CompactedListener<>(
+                  subscription, "notification", strKeyConv, NOTIFICATION_ENCODER),
+              notificationIndex);
+        } else if (initiallyActiveOnly) {
+          subscription.subscribeActive(
+              notificationHub,
+              new CompactedListener<>(
+                  subscription, "notification", strKeyConv, NOTIFICATION_ENCODER),
+              notificationIndex);
+        } else {
+          subscription.consume(
+              new EffectiveNotificationConsumer(
+                  KafkaConfig.getConsumerPropsWithRegistry(notificationIndex, false)),
+              new ESListener<>(subscription, "notification", strKeyConv, NOTIFICATION_ENCODER));
+        }
+      }
+
+      if (activation) {
+        if (initiallyCompactedOnly) {
+          subscription.subscribe(
+              activationHub,
+              new CompactedListener<>(subscription, "activation", strKeyConv, ACTIVATION_ENCODER),
+              activationIndex);
+        } else if (initiallyActiveOnly) {
+          subscription.subscribeActive(
+              activationHub,
+              new CompactedListener<>(subscription, "activation", strKeyConv, ACTIVATION_ENCODER),
+              activationIndex);
+        } else {
+          subscription.consume(
+              new ActivationConsumer(
+                  KafkaConfig.getConsumerPropsWithRegistry(activationIndex, false)),
+              new ESListener<>(subscription, "activation", strKeyConv, ACTIVATION_ENCODER));
+        }
+      }
+
+      // Configuration topics have no active state so either snapshot option is served compacted
+      final boolean compacted = initiallyCompactedOnly || initiallyActiveOnly;
+
+      if (system) {
+        if (compacted) {
+          subscription.subscribe(
+              systemHub,
+              new CompactedListener<>(subscription, "system", strKeyConv, SYSTEM_ENCODER),
+              systemIndex);
+        } else {
+          subscription.consume(
+              new SystemConsumer(KafkaConfig.getConsumerProps(systemIndex, false)),
+              new ESListener<>(subscription, "system", strKeyConv, SYSTEM_ENCODER));
+        }
+      }
+      if (action) {
+        if (compacted) {
+          subscription.subscribe(
+              actionHub,
+              new CompactedListener<>(subscription, "action", strKeyConv, ACTION_ENCODER),
+              actionIndex);
+        } else {
+          subscription.consume(
+              new ActionConsumer(KafkaConfig.getConsumerPropsWithRegistry(actionIndex, false)),
+              new ESListener<>(subscription, "action", strKeyConv, ACTION_ENCODER));
+        }
+      }
+      if (instance) {
+        if (compacted) {
+          subscription.subscribe(
+              instanceHub,
+              new CompactedListener<>(subscription, "instance", strKeyConv, ALARM_ENCODER),
+              instanceIndex);
+        } else {
+          subscription.consume(
+              new AlarmConsumer(KafkaConfig.getConsumerPropsWithRegistry(instanceIndex, false)),
+              new ESListener<>(subscription, "instance", strKeyConv, ALARM_ENCODER));
+        }
+      }
+      if (location) {
+        if (compacted) {
+          subscription.subscribe(
+              locationHub,
+              new CompactedListener<>(subscription, "location", strKeyConv, LOCATION_ENCODER),
+              locationIndex);
+        } else {
+          subscription.consume(
+              new LocationConsumer(KafkaConfig.getConsumerPropsWithRegistry(locationIndex, false)),
+              new ESListener<>(subscription, "location", strKeyConv, LOCATION_ENCODER));
+        }
+      }
+      if (override) {
+        if (compacted) {
+          subscription.subscribe(
+              overrideHub,
+              new CompactedListener<>(
+                  subscription, "override", new OverrideKeyConverter(), OVERRIDE_ENCODER),
+              overrideIndex);
+        } else {
+          subscription.consume(
+              new OverrideConsumer(KafkaConfig.getConsumerPropsWithRegistry(overrideIndex, false)),
+              new ESListener<>(
+                  subscription, "override", new OverrideKeyConverter(), OVERRIDE_ENCODER));
+        }
+      }
+      if (registration) {
+        if (compacted) {
+          subscription.subscribe(
+              registrationHub,
+              filter.registrations(
+                  new CompactedListener<>(
+                      subscription, "registration", strKeyConv, REGISTRATION_ENCODER),
+                  registrationIndex >= 0),
+              registrationIndex);
+        } else {
+          subscription.consume(
+              new EffectiveRegistrationConsumer(
+                  KafkaConfig.getConsumerPropsWithRegistry(registrationIndex, false)),
+              filter.registrations(
+                  new ESListener<>(subscription, "registration", strKeyConv, REGISTRATION_ENCODER),
+                  registrationIndex >= 0));
+        }
+      }
+
+      subscription.start();
+    } catch (RuntimeException e) {
+      disconnect(subscription, SseMetrics.DisconnectReason.ERROR);
+      throw e;
+    }
+  }
+
+  /**
+   * Report SSE connection and throughput metrics: counters since startup plus the currently
+   * connected clients with their queue depth and data sent, to find the expensive connections.
+   *
+   * @return The metrics
+   */
+  @GET
+  @Path("metrics")
+  @Produces(MediaType.APPLICATION_JSON)
+  public JsonObject metrics() {
+    JsonArrayBuilder connections = Json.createArrayBuilder();
+
+    for (Subscription subscription : subscriptions) {
+      connections.add(subscription.toJson());
+    }
+
+    return metrics
+        .toJson()
+        .add("connections", subscriptions.size())
+        .add("slowClientEvictions", slowClientEvictions.get())
+        .add("droppedEvents", droppedEvents.get())
+        .add("coalescedRecords", coalescedRecords.get())
+        .add("clients", connections)
+        .build();
+  }
+
+  /**
+   * Parse a composite event id into the offset to resume each topic from. Unknown or malformed
+   * entries are ignored, so a stale id only costs a snapshot.
+   *
+   * @param id The event id, may be null
+   * @return The resume offset by topic name
+   */
+  static Map<String, Long> parseEventId(String id) {
+    Map<String, Long> offsets = new HashMap<>();
+
+    if (id == null || id.isBlank()) {
+      return offsets;
+    }
+
+    for (String token : id.split(",")) {
+      for (Map.Entry<String, Character> entry : TOPIC_CODES.entrySet()) {
+        if (token.length() > 1 && token.charAt(0) == entry.getValue()) {
+          try {
+            offsets.put(entry.getKey(), Long.parseLong(token.substring(1)));
+          } catch (NumberFormatException e) {
+            LOG.log(Level.FINE, "Ignoring malformed event id token: {0}", token);
+          }
+        }
+      }
+    }
+
+    return offsets;
+  }
+
+  private static Set<String> nonBlank(List<String> names) {
+    Set<String> set = new HashSet<>();
+
+    for (String name : names) {
+      if (name != null && !name.isBlank()) {
+        set.add(name);
+      }
+    }
+
+    return set;
+  }
+
+  /**
+   * Expand the named locations to include all of their child locations.
+   *
+   * @param locationNames The location names
+   * @return The names of the locations and all children, or an empty set if none
+   * @throws IllegalArgumentException If a location is not found
+   */
+  private Set<String> materializeLocations(List<String> locationNames) {
+    Set<String> materialized = new HashSet<>();
+
+    for (String name : locationNames) {
+      if (name == null || name.isBlank()) {
+        continue;
+      }
+
+      Location l = locationFacade.findByName(name);
+
+      if (l == null) {
+        throw new IllegalArgumentException("Unknown location: " + name);
+      }
+
+      for (Location child : locationFacade.findBranchAsSet(l.getLocationId())) {
+        materialized.add(child.getName());
+      }
+    }
+
+    return materialized;
+  }
+
+  /**
+   * Start the timer that pings every connected sink once a second and the shared pool that writes
+   * queued events to sinks. The ping is what detects client disconnect, at which point the
+   * Subscription is released. Records are queued from consumer callbacks so no thread is held per
+   * connection and a slow client never holds up a consumer.
+   *
+   * @return false if shutting down, in which case nothing is started
+   */
+  private synchronized boolean startDelivery() {
+    // Checked again under the lock: a request racing shutdown mustn't recreate the executors
+    if (!accepting) {
+      return false;
+    }
+
+    if (heartbeat == null) {
+      heartbeat = Executors.newSingleThreadScheduledExecutor();
+      heartbeat.scheduleWithFixedDelay(this::ping, 1, 1, TimeUnit.SECONDS);
+    }
+
+    if (sender == null) {
+      sender = Executors.newFixedThreadPool(SENDER_THREADS);
+    }
+
+    return true;
+  }
+
+  /**
+   * Run a task on the sender pool.
+   *
+   * @return false if the pool is shut down (or shutting down), in which case the task isn't run
+   */
+  private boolean execute(Runnable task) {
+    ExecutorService executor = sender;
+
+    if (executor == null) {
+      return false;
+    }
+
+    try {
+      executor.execute(task);
+      return true;
+    } catch (RejectedExecutionException e) {
+      return false;
+    }
+  }
+
+  private void ping() {
+    try {
+      OutboundSseEvent event = sse.newEvent("ping", Instant.now().toString());
+
+      for (Subscription subscription : subscriptions) {
+        if (subscription.sink.isClosed()) {
+          disconnect(subscription, SseMetrics.DisconnectReason.CLIENT_CLOSED);
+        } else {
+          subscription.ping(event);
+        }
+      }
+    } catch (RuntimeException e) {
+      // An escaped exception would silently cancel the heartbeat
+      LOG.log(Level.WARNING, "Unable to ping SSE clients", e);
+    }
+  }
+
+  private void disconnect(Subscription subscription, SseMetrics.DisconnectReason reason) {
+    if (subscriptions.remove(subscription)) {
+      metrics.disconnected(reason);
+      subscription.close();
+    }
+  }
+
+  /**
+   * The Kafka resources held on behalf of a single SSE client: registrations with shared hubs plus
+   * any dedicated consumers (needed when the full topic history is requested, which hubs don't
+   * retain).
+   *
+   * <p>Events are queued and written to the sink one at a time by the shared sender pool. If the
+   * client can't keep up and the queue fills, the client is disconnected; the browser EventSource
+   * then reconnects and is sent a fresh snapshot rather than a backlog.
+   *
+   * <p>Each event carries an id with the offset to resume every topic from. A topic only advances
+   * once its snapshot is complete (the snapshot isn't in offset order), so a client that reconnects
+   * mid-snapshot is sent that snapshot again.
+   */
+  class Subscription implements AutoCloseable {
+    private final SseEventSink sink;
+    private final int maxBatchRecords;
+    private final int coalesceMillis;
+    private final List<Coalescer<?, ?>> coalescers = new CopyOnWriteArrayList<>();
+    private ScheduledFuture<?> flushTask = null;
+    private final List<EventSourceTable<?, ?>> consumers = new ArrayList<>();
+    private final List<Runnable> unsubscribes = new CopyOnWriteArrayList<>();
+    private final ArrayDeque<OutboundSseEvent> queue = new ArrayDeque<>();
+    // Queued events of a compacted snapshot, which don't count toward MAX_QUEUED_EVENTS
+    private final Set<OutboundSseEvent> snapshotEvents =
+        Collections.newSetFromMap(new IdentityHashMap<>());
+    private boolean sending = false;
+    // Also set on eviction, before close runs on the sender pool
+    private boolean closed = false;
+    private final Map<String, Long> resumeOffsets = new LinkedHashMap<>();
+    private final Map<String, Long> snapshotOffsets = new HashMap<>();
+    private final Set<String> live = new HashSet<>();
+    private final long id = subscriptionIds.incrementAndGet();
+    private final String remoteAddr;
+    private final String entitiesCsv;
+    private final Instant connectedAt = Instant.now();
+    private final long connectedNanos = System.nanoTime();
+    private long recordsSent = 0;
+    private long charsSent = 0;
+
+    Subscription(
+        SseEventSink sink,
+        int maxBatchRecords,
+        int coalesceMillis,
+        String remoteAddr,
+        String entitiesCsv) {
+      this.sink = sink;
+      this.maxBatchRecords = maxBatchRecords > 0 ? Math.max(MIN_BATCH_RECORDS, maxBatchRecords) : 0;
+      this.coalesceMillis = coalesceMillis;
+      this.remoteAddr = remoteAddr;
+      this.entitiesCsv = entitiesCsv;
+    }
+
+    synchronized JsonObject toJson() {
+      return Json.createObjectBuilder()
+          .add("id", id)
+          .add("remoteAddr", String.valueOf(remoteAddr))
+          .add("entities", entitiesCsv)
+          .add("connectedAt", connectedAt.toString())
+          .add("queued", queue.size())
+          .add("records", recordsSent)
+          .add("chars", charsSent)
+          .add("live", String.join(",", live))
+          .build();
+    }
+
+    void send(String eventName, String data) {
+      send(sse.newEvent(eventName, data));
+    }
+
+    private OutboundSseEvent newEvent(String eventName, String data, String id) {
+      if (id == null) {
+        return sse.newEvent(eventName, data);
+      }
+
+      return sse.newEventBuilder().name(eventName).id(id).data(data).build();
+    }
+
+    synchronized void resumeFrom(String eventName, long index) {
+      resumeOffsets.put(eventName, index);
+    }
+
+    /**
+     * Record that records up to the given offset were sent and return the id for the event, or null
+     * if the topic hasn't reached highwater.
+     */
+    private synchronized String advance(String eventName, long offset) {
+      if (!live.contains(eventName)) {
+        snapshotOffsets.merge(eventName, offset, Math::max);
+        return null;
+      }
+
+      resumeOffsets.merge(eventName, offset + 1, Math::max);
+
+      return eventId();
+    }
+
+    private synchronized String eventId() {
+      StringJoiner joiner = new StringJoiner(",");
+
+      for (Map.Entry<String, Long> entry : resumeOffsets.entrySet()) {
+        if (entry.getValue() >= 0) {
+          joiner.add(TOPIC_CODES.get(entry.getKey()) + entry.getValue().toString());
+        }
+      }
+
+      return joiner.length() == 0 ? null : joiner.toString();
+    }
+
+    void sendHighWaterMark(String eventName) {
+      int dropped;
+
+      synchronized (this) {
+        if (live.add(eventName)) {
+          metrics.snapshotComplete(
+              eventName, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectedNanos));
+        }
+
+        Long offset = snapshotOffsets.remove(eventName);
+
+        if (offset != null) {
+          resumeOffsets.merge(eventName, offset + 1, Math::max);
+        }
+
+        dropped = enqueue(newEvent(eventName + "-highwatermark", "", eventId()), false);
+      }
+
+      evictIfDropped(dropped);
+    }
+
+    void send(OutboundSseEvent event) {
+      int dropped;
+
+      synchronized (this) {
+        dropped = enqueue(event, false);
+      }
+
+      evictIfDropped(dropped);
+    }
+
+    /**
+     * Queue an event for the sender pool, holding the lock. A compacted snapshot is bounded by the
+     * size of the topic and is sent all at once on connect, so its events are exempt from the queue
+     * limit; otherwise a client asking for small batches would be evicted by its own snapshot, and
+     * reconnect in a loop.
+     *
+     * <p>An event carrying an id must be queued in the same critical section that computed the id,
+     * or events of two topics could be queued out of id order and a client resuming from the later
+     * id would skip records of the other topic.
+     *
+     * @return The number of events dropped if the client is too slow and must be evicted, else -1
+     */
+    private int enqueue(OutboundSseEvent event, boolean snapshot) {
+      if (closed) {
+        return -1;
+      }
+
+      if (!snapshot && queue.size() - snapshotEvents.size() >= MAX_QUEUED_EVENTS) {
+        // Nothing more is queued or sent while the eviction waits for the sender pool
+        closed = true;
+        return queue.size() + 1;
+      }
+
+      queue.add(event);
+
+      if (snapshot) {
+        snapshotEvents.add(event);
+      }
+
+      if (!sending) {
+        sending = execute(this::drain);
+      }
+
+      return -1;
+    }
+
+    /**
+     * Disconnect on the sender pool. The caller may be delivering under a hub's lock, and
+     * disconnecting unsubscribes from every hub and closes dedicated consumers. If the pool is
+     * already shut down, shutdown disconnects the client anyway.
+     */
+    private void evictIfDropped(int dropped) {
+      if (dropped != -1) {
+        LOG.log(Level.WARNING, "Disconnecting slow SSE client with {0} queued events", dropped);
+        slowClientEvictions.incrementAndGet();
+        droppedEvents.addAndGet(dropped);
+        execute(() -> disconnect(this, SseMetrics.DisconnectReason.SLOW_CLIENT));
+      }
+    }
+
+    synchronized boolean isDrained() {
+      return closed || (queue.isEmpty() && !sending);
+    }
+
+    /** A ping is only needed if nothing else is waiting to be sent. */
+    void ping(OutboundSseEvent event) {
+      synchronized (this) {
+        if (sending) {
+          return;
+        }
+      }
+
+      send(event);
+    }
+
+    private void drain() {
+      while (true) {
+        OutboundSseEvent event;
+
+        synchronized (this) {
+          event = closed ? null : queue.poll();
+
+          if (event == null) {
+            sending = false;
+            return;
+          }
+
+          snapshotEvents.remove(event);
+        }
+
+        CompletableFuture<?> future;
+
+        try {
+          future = sink.send(event).toCompletableFuture();
+        } catch (RuntimeException e) {
+          disconnect(this, SseMetrics.DisconnectReason.SEND_FAILED);
+          return;
+        }
+
+        if (!future.isDone()) {
+          future.whenComplete(
+              (v, t) -> {
+                if (t == null) {
+                  if (!execute(this::drain)) {
+                    // Shut down; the connection is about to be closed
+                    synchronized (this) {
+                      sending = false;
+                    }
+                  }
                 } else {
-                  alarmListener =
-                      new CompactedListener<>(sink, "alarm", strKeyConv, EFFECTIVE_ALARM_MIXINS);
+                  disconnect(this, SseMetrics.DisconnectReason.SEND_FAILED);
                 }
-                notificationListener =
-                    new CompactedListener<>(sink, "notification", strKeyConv, NOTIFICATION_MIXINS);
-                activationListener =
-                    new CompactedListener<>(sink, "activation", strKeyConv, ACTIVATION_MIXINS);
-              } else {
-                alarmListener = new ESListener<>(sink, "alarm", strKeyConv, EFFECTIVE_ALARM_MIXINS);
-                notificationListener =
-                    new ESListener<>(sink, "notification", strKeyConv, NOTIFICATION_MIXINS);
-                activationListener =
-                    new ESListener<>(sink, "activation", strKeyConv, ACTIVATION_MIXINS);
-              }
-
-              alarmConsumer.addListener(alarmListener);
-              notificationConsumer.addListener(notificationListener);
-              activationConsumer.addListener(activationListener);
-
-              // TODO: honor initiallyCompactedOnly for these other topics
-              systemConsumer.addListener(
-                  new ESListener<>(sink, "system", strKeyConv, SYSTEM_MIXINS));
-              actionConsumer.addListener(
-                  new ESListener<>(sink, "action", strKeyConv, ACTION_MIXINS));
-              instanceConsumer.addListener(
-                  new ESListener<>(sink, "instance", strKeyConv, ALARM_MIXINS));
-              locationConsumer.addListener(
-                  new ESListener<>(sink, "location", strKeyConv, LOCATION_MIXINS));
-              overrideConsumer.addListener(
-                  new ESListener<>(sink, "override", new OverrideKeyConverter(), OVERRIDE_MIXINS));
-              registrationConsumer.addListener(
-                  new ESListener<>(sink, "registration", strKeyConv, REGISTRATION_MIXINS));
-
-              if (alarm) alarmConsumer.start();
-              if (activation) activationConsumer.start();
-              if (system) systemConsumer.start();
-              if (action) actionConsumer.start();
-              if (instance) instanceConsumer.start();
-              if (location) locationConsumer.start();
-              if (notification) notificationConsumer.start();
-              if (override) overrideConsumer.start();
-              if (registration) registrationConsumer.start();
-
-              try {
-                while (!sink.isClosed()) {
-                  sink.send(
-                      sse.newEvent(
-                          "ping", Instant.now().toString())); // Actively check for connection
-                  // Looping waiting for client disconnect
-                  Thread.sleep(1000);
-                }
-              } catch (InterruptedException e) {
-                System.err.println("SSE Thread interrupted, shutting down");
-                e.printStackTrace();
-              }
-            }
-            // Client disconnected if here
+              });
+          return;
+        }
+
+        if (future.isCompletedExceptionally()) {
+          disconnect(this, SseMetrics.DisconnectReason.SEND_FAILED);
+          return;
+        }
+      }
+    }
+
+    /**
+     * Send records as one or more events of at most maxBatchRecords each, so neither server nor
+     * browser has to hold an entire snapshot as a single string.
+     */
+    <K, V> void sendRecords(
+        String eventName,
+        List<EventSourceRecord<K, V>> records,
+        KeyConverter<K> keyConverter,
+        BatchEncoder encoder) {
+      sendRecords(eventName, records, keyConverter, encoder, false);
+    }
+
+    /**
+     * @param snapshot true if the records are a compacted snapshot, exempt from the queue limit
+     */
+    <K, V> void sendRecords(
+        String eventName,
+        List<EventSourceRecord<K, V>> records,
+        KeyConverter<K> keyConverter,
+        BatchEncoder encoder,
+        boolean snapshot) {
+      int chunkSize = maxBatchRecords > 0 ? maxBatchRecords : records.size();
+
+      for (int i = 0; i < records.size(); i = i + chunkSize) {
+        List<EventSourceRecord<K, V>> chunk =
+            records.subList(i, Math.min(i + chunkSize, records.size()));
+
+        long offset = -1;
+        for (EventSourceRecord<K, V> record : chunk) {
+          offset = Math.max(offset, record.getOffset());
+        }
+
+        long start = System.nanoTime();
+        String data = encoder.encodeBatch(eventName, chunk, keyConverter);
+        metrics.encoded(eventName, chunk.size(), data.length(), System.nanoTime() - start);
+
+        int dropped;
+
+        synchronized (this) {
+          recordsSent = recordsSent + chunk.size();
+          charsSent = charsSent + data.length();
+
+          dropped = enqueue(newEvent(eventName, data, advance(eventName, offset)), snapshot);
+        }
+
+        evictIfDropped(dropped);
+      }
+    }
+
+    <K, V> void subscribe(TopicHub<K, V> hub, EventSourceListener<K, V> listener, long index) {
+      subscribe(hub, listener, () -> hub.subscribe(listener, index));
+    }
+
+    <K, V> void subscribeActive(
+        TopicHub<K, V> hub, EventSourceListener<K, V> listener, long index) {
+      subscribe(hub, listener, () -> hub.subscribeActive(listener, index));
+    }
+
+    /**
+     * The unsubscribe is registered before subscribing since the snapshot delivered while
+     * subscribing can overflow the queue and close this subscription. If closed meanwhile (here or
+     * by another thread) the listener is unsubscribed again; unsubscribing is idempotent.
+     */
+    private <K, V> void subscribe(
+        TopicHub<K, V> hub, EventSourceListener<K, V> listener, Runnable subscribe) {
+      Runnable unsubscribe = () -> hub.unsubscribe(listener);
+
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+
+        unsubscribes.add(unsubscribe);
+      }
+
+      subscribe.run();
+
+      if (isClosed()) {
+        unsubscribe.run();
+      }
+    }
+
+    <K, V> void consume(EventSourceTable<K, V> consumer, EventSourceListener<K, V> listener) {
+      synchronized (this) {
+        if (!closed) {
+          consumer.addListener(listener);
+          consumers.add(consumer);
+          return;
+        }
+      }
+
+      // Never started, but may hold a Kafka client
+      consumer.close();
+    }
+
+    synchronized boolean isClosed() {
+      return closed;
+    }
+
+    /**
+     * Start the flush timer and dedicated consumers, unless evicted while being sent snapshots
+     * (close then releases everything, if it hasn't already). Under the lock so close can't run
+     * part way. If the endpoint is shutting down meanwhile the subscription is disconnected
+     * instead.
+     */
+    void start() {
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+
+        if (startFlushTimer()) {
+          for (EventSourceTable<?, ?> consumer : consumers) {
+            consumer.start();
           }
-        });
+
+          return;
+        }
+      }
+
+      disconnect(this, SseMetrics.DisconnectReason.SHUTDOWN);
+    }
+
+    /**
+     * @return false if shutting down, the heartbeat that runs the timer being gone
+     */
+    private boolean startFlushTimer() {
+      // Shutdown stops and clears the heartbeat under this lock, so it can't be stopped part way
+      synchronized (SSE.this) {
+        if (heartbeat == null) {
+          return false;
+        }
+
+        if (coalesceMillis > 0) {
+          flushTask =
+              heartbeat.scheduleWithFixedDelay(
+                  this::flush, coalesceMillis, coalesceMillis, TimeUnit.MILLISECONDS);
+        }
+
+        return true;
+      }
+    }
+
+    void flush() {
+      try {
+        for (Coalescer<?, ?> coalescer : coalescers) {
+          coalescer.flush();
+        }
+      } catch (RuntimeException e) {
+        // An escaped exception would silently cancel the flush task
+        LOG.log(Level.WARNING, "Unable to flush coalesced SSE records", e);
+      }
+    }
+
+    @Override
+    public void close() {
+      List<EventSourceTable<?, ?>> toClose;
+      ScheduledFuture<?> task;
+
+      synchronized (this) {
+        closed = true;
+        queue.clear();
+        snapshotEvents.clear();
+        toClose = new ArrayList<>(consumers);
+        task = flushTask;
+      }
+
+      if (task != null) {
+        task.cancel(false);
+      }
+
+      for (Runnable unsubscribe : unsubscribes) {
+        unsubscribe.run();
+      }
+
+      for (EventSourceTable<?, ?> consumer : toClose) {
+        consumer.close();
+      }
+
+      if (!sink.isClosed()) {
+        sink.close();
+      }
+    }
   }
 
   class ESListener<K, V> implements EventSourceListener<K, V> {
-    protected final SseEventSink sink;
+    protected final Subscription subscription;
     protected final String eventName;
     protected final KeyConverter<K> keyConverter;
-    protected final List<Mixin> mixins;
+    protected final BatchEncoder encoder;
+    protected final Coalescer<K, V> coalescer;
 
     ESListener(
-        SseEventSink sink, String eventName, KeyConverter<K> keyConverter, List<Mixin> mixins) {
-      this.sink = sink;
+        Subscription subscription,
+        String eventName,
+        KeyConverter<K> keyConverter,
+        BatchEncoder encoder) {
+      this.subscription = subscription;
       this.eventName = eventName;
       this.keyConverter = keyConverter;
-      this.mixins = mixins;
+      this.encoder = encoder;
+      this.coalescer = new Coalescer<>(subscription, eventName, keyConverter, encoder);
     }
 
     @Override
     public void highWaterOffset(LinkedHashMap<K, EventSourceRecord<K, V>> records) {
-      sink.send(sse.newEvent(eventName + "-highwatermark", ""));
+      subscription.sendHighWaterMark(eventName);
     }
 
     @Override
     public void batch(List<EventSourceRecord<K, V>> records, boolean highWaterReached) {
-      sendRecords(sink, eventName, records, keyConverter, mixins);
+      if (highWaterReached) {
+        coalescer.send(records);
+      } else {
+        subscription.sendRecords(eventName, records, keyConverter, encoder);
+      }
     }
   }
 
   class CompactedListener<K, V> implements EventSourceListener<K, V> {
-    protected final SseEventSink sink;
+    protected final Subscription subscription;
     protected final String eventName;
     protected final KeyConverter<K> keyConverter;
-    protected final List<Mixin> mixins;
+    protected final BatchEncoder encoder;
+    protected final Coalescer<K, V> coalescer;
 
     CompactedListener(
-        SseEventSink sink, String eventName, KeyConverter<K> keyConverter, List<Mixin> mixins) {
-      this.sink = sink;
+        Subscription subscription,
+        String eventName,
+        KeyConverter<K> keyConverter,
+        BatchEncoder encoder) {
+      this.subscription = subscription;
       this.eventName = eventName;
       this.keyConverter = keyConverter;
-      this.mixins = mixins;
+      this.encoder = encoder;
+      this.coalescer = new Coalescer<>(subscription, eventName, keyConverter, encoder);
     }
 
     @Override
     public void highWaterOffset(LinkedHashMap<K, EventSourceRecord<K, V>> records) {
       if (!records.isEmpty()) {
-        sendRecords(sink, eventName, new ArrayList<>(records.values()), keyConverter, mixins);
+        subscription.sendRecords(
+            eventName, new ArrayList<>(records.values()), keyConverter, encoder, true);
       }
-      sink.send(sse.newEvent(eventName + "-highwatermark", ""));
+      subscription.sendHighWaterMark(eventName);
     }
 
     @Override
     public void batch(List<EventSourceRecord<K, V>> records, boolean highWaterReached) {
       if (highWaterReached) {
-        sendRecords(sink, eventName, records, keyConverter, mixins);
+        coalescer.send(records);
       }
     }
   }
 
-  abstract class ActiveOnlyESListener<K, V> extends ESListener<K, V> {
-
-    ActiveOnlyESListener(
-        SseEventSink sink, String eventName, KeyConverter<K> keyConverter, List<Mixin> mixins) {
-      super(sink, eventName, keyConverter, mixins);
-    }
+  /**
+   * Sends live records to a Subscription. If the Subscription has a coalescing window then records
+   * are held in a pending buffer that keeps only the latest record per key and is flushed on a
+   * timer, so during an alarm storm a client receives the current state with far fewer events.
+   */
+  class Coalescer<K, V> {
+    private final Subscription subscription;
+    private final String eventName;
+    private final KeyConverter<K> keyConverter;
+    private final BatchEncoder encoder;
+    private final LinkedHashMap<K, EventSourceRecord<K, V>> pending = new LinkedHashMap<>();
+
+    Coalescer(
+        Subscription subscription,
+        String eventName,
+        KeyConverter<K> keyConverter,
+        BatchEncoder encoder) {
+      this.subscription = subscription;
+      this.eventName = eventName;
+      this.keyConverter = keyConverter;
+      this.encoder = encoder;
 
-    public boolean isActiveState(AlarmState state) {
-      return state == AlarmState.Active
-          || state == AlarmState.ActiveLatched
-          || state == AlarmState.ActiveOffDelayed;
+      subscription.coalescers.add(this);
     }
 
-    public boolean isActiveUnion(Object union) {
-      return union instanceof EPICSActivation
-          || union instanceof NoteActivation
-          || union instanceof Activation;
-    }
+    void send(List<EventSourceRecord<K, V>> records) {
+      if (subscription.coalesceMillis <= 0) {
+        subscription.sendRecords(eventName, records, keyConverter, encoder);
+        return;
+      }
 
-    public abstract boolean isActive(V value);
+      long coalesced = 0;
 
-    @Override
-    public void highWaterOffset(LinkedHashMap<K, EventSourceRecord<K, V>> records) {
-      List<EventSourceRecord<K, V>> activeRecords = new ArrayList<>();
-      for (EventSourceRecord<K, V> record : records.values()) {
-        if (isActive(record.getValue())) {
-          activeRecords.add(record);
+      synchronized (this) {
+        for (EventSourceRecord<K, V> record : records) {
+          // Remove first so the key moves to the end, keeping pending in update order
+          if (pending.remove(record.getKey()) != null) {
+            coalesced++;
+          }
+          pending.put(record.getKey(), record);
         }
       }
-      if (!activeRecords.isEmpty()) {
-        sendRecords(sink, eventName, activeRecords, keyConverter, mixins);
-      }
-      sink.send(sse.newEvent(eventName + "-highwatermark", ""));
+
+      coalescedRecords.addAndGet(coalesced);
     }
 
-    @Override
-    public void batch(List<EventSourceRecord<K, V>> records, boolean highWaterReached) {
-      if (highWaterReached) {
-        sendRecords(sink, eventName, records, keyConverter, mixins);
+    void flush() {
+      List<EventSourceRecord<K, V>> records;
+
+      synchronized (this) {
+        if (pending.isEmpty()) {
+          return;
+        }
+
+        records = new ArrayList<>(pending.values());
+        pending.clear();
       }
+
+      subscription.sendRecords(eventName, records, keyConverter, encoder);
     }
   }
 
-  class AlarmIAOListener extends ActiveOnlyESListener<String, EffectiveAlarm> {
+  /**
+   * Matches alarms against the location and system filters of a single connection, mirroring the
+   * rules of the active alarms page: unregistered and unfilterable alarms always match.
+   */
+  static class AlarmFilter {
+    private final Set<String> locations;
+    private final Set<String> systems;
 
-    AlarmIAOListener(SseEventSink sink) {
-      super(sink, "alarm", strKeyConv, EFFECTIVE_ALARM_MIXINS);
+    AlarmFilter(Set<String> locations, Set<String> systems) {
+      this.locations = locations;
+      this.systems = systems;
     }
 
-    @Override
-    public boolean isActive(EffectiveAlarm value) {
-      return isActiveState(value.getNotification().getState());
+    boolean isEmpty() {
+      return locations.isEmpty() && systems.isEmpty();
     }
-  }
 
-  class NotificationIAOListener extends ActiveOnlyESListener<String, EffectiveNotification> {
+    boolean matches(EffectiveRegistration registration) {
+      if (registration == null
+          || registration.getAlarm() == null
+          || registration.getAction() == null
+          || !registration.getAction().getFilterable()) {
+        return true;
+      }
+
+      if (!systems.isEmpty() && !systems.contains(registration.getAction().getSystem())) {
+        return false;
+      }
+
+      if (!locations.isEmpty()) {
+        List<String> alarmLocations = registration.getAlarm().getLocation();
+
+        return alarmLocations != null && alarmLocations.stream().anyMatch(locations::contains);
+      }
 
-    NotificationIAOListener(SseEventSink sink) {
-      super(sink, "notification", strKeyConv, NOTIFICATION_MIXINS);
+      return true;
     }
 
-    @Override
-    public boolean isActive(EffectiveNotification value) {
-      return isActiveState(value.getState());
+    /**
+     * @param resumed true if the client resumes from an offset, and so may hold any key
+     */
+    EventSourceListener<String, EffectiveAlarm> alarms(
+        EventSourceListener<String, EffectiveAlarm> delegate, boolean resumed) {
+      return isEmpty()
+          ? delegate
+          : new FilteredListener<>(delegate, value -> matches(value.getRegistration()), resumed);
+    }
+
+    EventSourceListener<String, EffectiveRegistration> registrations(
+        EventSourceListener<String, EffectiveRegistration> delegate, boolean resumed) {
+      return isEmpty() ? delegate : new FilteredListener<>(delegate, this::matches, resumed);
     }
   }
 
-  class ActivationIAOListener extends ActiveOnlyESListener<String, AlarmActivationUnion> {
+  /**
+   * Drops records that don't match a predicate before they reach the delegate (and so before they
+   * are serialized). A key that was sent and later stops matching is sent as a tombstone so the
+   * client removes it.
+   *
+   * <p>A resumed client kept whatever it held before reconnecting, which this listener never sent,
+   * so for it every record that doesn't match is sent as a tombstone.
+   */
+  static class FilteredListener<K, V> implements EventSourceListener<K, V> {
+    private final EventSourceListener<K, V> delegate;
+    private final Predicate<V> predicate;
+    private final boolean resumed;
+    private final Set<K> sentKeys = new HashSet<>();
+
+    FilteredListener(EventSourceListener<K, V> delegate, Predicate<V> predicate, boolean resumed) {
+      this.delegate = delegate;
+      this.predicate = predicate;
+      this.resumed = resumed;
+    }
 
-    ActivationIAOListener(SseEventSink sink) {
-      super(sink, "activation", strKeyConv, ACTIVATION_MIXINS);
+    @Override
+    public synchronized void highWaterOffset(LinkedHashMap<K, EventSourceRecord<K, V>> records) {
+      LinkedHashMap<K, EventSourceRecord<K, V>> matching = new LinkedHashMap<>();
+
+      for (EventSourceRecord<K, V> record : records.values()) {
+        EventSourceRecord<K, V> filtered = filter(record);
+
+        if (filtered != null) {
+          matching.put(record.getKey(), filtered);
+        }
+      }
+
+      delegate.highWaterOffset(matching);
     }
 
     @Override
-    public boolean isActive(AlarmActivationUnion value) {
-      return isActiveUnion(value.getUnion());
+    public synchronized void batch(
+        List<EventSourceRecord<K, V>> records, boolean highWaterReached) {
+      List<EventSourceRecord<K, V>> matching = new ArrayList<>();
+
+      for (EventSourceRecord<K, V> record : records) {
+        EventSourceRecord<K, V> filtered = filter(record);
+
+        if (filtered != null) {
+          matching.add(filtered);
+        }
+      }
+
+      if (!matching.isEmpty()) {
+        delegate.batch(matching, highWaterReached);
+      }
+    }
+
+    /**
+     * @return The record if it matches, a tombstone if the client may hold the key, else null
+     */
+    private EventSourceRecord<K, V> filter(EventSourceRecord<K, V> record) {
+      if (record.getValue() != null && predicate.test(record.getValue())) {
+        sentKeys.add(record.getKey());
+        return record;
+      }
+
+      if (!sentKeys.remove(record.getKey()) && !resumed) {
+        return null;
+      }
+
+      return record.getValue() == null
+          ? record
+          : new EventSourceRecord<>(
+              record.getKey(), null, record.getOffset(), record.getTimestamp());
     }
   }
 
@@ -498,59 +1651,4 @@ public class SSE implements ServletContextListener {
       return key.getName() + " " + key.getType();
     }
   }
-
-  private <K, V> void sendRecords(
-      SseEventSink sink,
-      String eventName,
-      List<EventSourceRecord<K, V>> records,
-      KeyConverter<K> keyConverter,
-      List<Mixin> mixins) {
-    StringBuilder builder = new StringBuilder();
-    builder.append("[");
-
-    ObjectMapper mapper = new ObjectMapper();
-
-    if (mixins != null) {
-      for (Mixin m : mixins) {
-        mapper.addMixIn(m.target, m.mixinSource);
-      }
-    }
-
-    for (EventSourceRecord<K, V> record : records) {
-      K key = record.getKey();
-      V value = record.getValue();
-
-      String keyStr = keyConverter.toString(key);
-      String jsonValue = null;
-
-      if (value != null) {
-        try {
-          jsonValue = mapper.writeValueAsString(value);
-        } catch (IOException e) {
-          e.printStackTrace();
-        }
-      }
-
-      String recordString =
-          "{\"key\": \""
-              + keyStr
-              + "\", \"value\": "
-              + jsonValue
-              + ", \"offset\": "
-              + record.getOffset()
-              + "},";
-
-      builder.append(recordString);
-    }
-
-    int i = builder.lastIndexOf(",");
-
-    if (i == -1) {
-      builder.append("]");
-    } else {
-      builder.replace(i, i + 1, "]");
-    }
-
-    sink.send(sse.newEvent(eventName, builder.toString()));
-  }
 }
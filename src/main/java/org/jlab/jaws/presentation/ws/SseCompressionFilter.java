@@ -0,0 +1,281 @@
+package org.jlab.jaws.presentation.ws;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpFilter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Compresses the /sse event stream with gzip or deflate when the client accepts it.
+ *
+ * <p>The stream is compressed as a whole, so even a small live delta compresses well against the
+ * snapshot already sent, and is sync flushed at each event boundary so events are never held back.
+ * Compression is per connection (an event is compressed once per client), so events smaller than
+ * SSE_COMPRESSION_MIN_BYTES, such as pings, are passed through as stored blocks instead. That
+ * per-client cost is why compression is off unless SSE_COMPRESSION_MIN_BYTES is set.
+ *
+ * <p>Compressed bytes are buffered and only written to the container's stream while it's ready, so
+ * the wrapper also works if the stream is put in non-blocking mode (a WriteListener is set).
+ */
+@WebFilter(urlPatterns = "/proxy/sse", asyncSupported = true)
+public class SseCompressionFilter extends HttpFilter {
+  // Events below this size are not compressed; negative (the default) disables compression
+  private static final int MIN_BYTES = SSE.getIntEnv("SSE_COMPRESSION_MIN_BYTES", -1);
+
+  @Override
+  protected void doFilter(
+      HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+      throws IOException, ServletException {
+    String encoding = MIN_BYTES < 0 ? null : chooseEncoding(request.getHeader("Accept-Encoding"));
+
+    if (encoding == null) {
+      chain.doFilter(request, response);
+      return;
+    }
+
+    response.setHeader("Content-Encoding", encoding);
+    response.addHeader("Vary", "Accept-Encoding");
+
+    chain.doFilter(request, new CompressingResponse(response, encoding));
+  }
+
+  /**
+   * Choose gzip or deflate from an Accept-Encoding header, honoring q-values (q=0 means not
+   * acceptable) and the * wildcard.
+   *
+   * @param accept The header value, may be null
+   * @return "gzip", "deflate", or null for neither
+   */
+  static String chooseEncoding(String accept) {
+    if (accept == null) {
+      return null;
+    }
+
+    Float gzip = null;
+    Float deflate = null;
+    Float any = null;
+
+    for (String token : accept.split(",")) {
+      String[] parts = token.split(";");
+      String coding = parts[0].trim().toLowerCase();
+      float q = 1;
+
+      for (int i = 1; i < parts.length; i++) {
+        String param = parts[i].trim();
+
+        if (param.startsWith("q=")) {
+          try {
+            q = Float.parseFloat(param.substring(2).trim());
+          } catch (NumberFormatException e) {
+            q = 0;
+          }
+        }
+      }
+
+      if ("gzip".equals(coding) || "x-gzip".equals(coding)) {
+        gzip = q;
+      } else if ("deflate".equals(coding)) {
+        deflate = q;
+      } else if ("*".equals(coding)) {
+        any = q;
+      }
+    }
+
+    float gzipQ = gzip != null ? gzip : any != null ? any : 0;
+    float deflateQ = deflate != null ? deflate : any != null ? any : 0;
+
+    if (gzipQ > 0 && gzipQ >= deflateQ) {
+      return "gzip";
+    }
+
+    return deflateQ > 0 ? "deflate" : null;
+  }
+
+  private static class CompressingResponse extends HttpServletResponseWrapper {
+    private final String encoding;
+    private CompressingOutputStream stream = null;
+    private PrintWriter writer = null;
+
+    private CompressingResponse(HttpServletResponse response, String encoding) {
+      super(response);
+      this.encoding = encoding;
+    }
+
+    @Override
+    public synchronized ServletOutputStream getOutputStream() throws IOException {
+      if (stream == null) {
+        stream = new CompressingOutputStream(super.getOutputStream(), encoding, MIN_BYTES);
+      }
+      return stream;
+    }
+
+    @Override
+    public synchronized PrintWriter getWriter() throws IOException {
+      if (writer == null) {
+        writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), getCharacterEncoding()));
+      }
+      return writer;
+    }
+
+    @Override
+    public void setContentLength(int len) {
+      // Length of the compressed stream isn't known
+    }
+
+    @Override
+    public void setContentLengthLong(long len) {
+      // Length of the compressed stream isn't known
+    }
+
+    @Override
+    public synchronized void flushBuffer() throws IOException {
+      if (writer != null) {
+        writer.flush();
+      } else if (stream != null) {
+        stream.flush();
+      }
+      super.flushBuffer();
+    }
+  }
+
+  /**
+   * Buffers the bytes of one event and on flush compresses them, choosing the level by event size.
+   * Compressed bytes are held until the underlying stream is ready for them.
+   */
+  static class CompressingOutputStream extends ServletOutputStream {
+    private final ServletOutputStream out;
+    private final Deflater deflater;
+    private final DeflaterOutputStream compressor;
+    private final int minBytes;
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    private WriteListener listener = null;
+
+    CompressingOutputStream(ServletOutputStream out, String encoding, int minBytes)
+        throws IOException {
+      this.out = out;
+      this.minBytes = minBytes;
+
+      if ("gzip".equals(encoding)) {
+        LeveledGzipOutputStream gzip = new LeveledGzipOutputStream(compressed);
+        this.deflater = gzip.deflater();
+        this.compressor = gzip;
+      } else {
+        this.deflater = new Deflater();
+        this.compressor = new DeflaterOutputStream(compressed, deflater, true);
+      }
+    }
+
+    @Override
+    public synchronized void write(int b) {
+      pending.write(b);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+      pending.write(b, off, len);
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+      if (pending.size() > 0) {
+        deflater.setLevel(
+            pending.size() >= minBytes ? Deflater.DEFAULT_COMPRESSION : Deflater.NO_COMPRESSION);
+        pending.writeTo(compressor);
+        pending.reset();
+      }
+
+      compressor.flush();
+
+      writeCompressed();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      flush();
+      compressor.finish();
+      writeCompressed();
+      out.close();
+    }
+
+    /**
+     * Write compressed bytes to the underlying stream: always when blocking, and in non-blocking
+     * mode only while it's ready (the rest is written from onWritePossible).
+     *
+     * @return true if nothing compressed is left unwritten
+     */
+    private boolean writeCompressed() throws IOException {
+      if (compressed.size() == 0) {
+        return true;
+      }
+
+      if (listener != null && !out.isReady()) {
+        return false;
+      }
+
+      compressed.writeTo(out);
+      compressed.reset();
+
+      if (listener == null || out.isReady()) {
+        out.flush();
+      }
+
+      return true;
+    }
+
+    @Override
+    public synchronized boolean isReady() {
+      return compressed.size() == 0 && out.isReady();
+    }
+
+    @Override
+    public synchronized void setWriteListener(WriteListener listener) {
+      this.listener = listener;
+
+      out.setWriteListener(
+          new WriteListener() {
+            @Override
+            public void onWritePossible() throws IOException {
+              boolean written;
+
+              synchronized (CompressingOutputStream.this) {
+                written = writeCompressed() && out.isReady();
+              }
+
+              if (written) {
+                listener.onWritePossible();
+              }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+              listener.onError(t);
+            }
+          });
+    }
+  }
+
+  /** GZIPOutputStream doesn't expose its Deflater, which is needed to change level per event. */
+  private static class LeveledGzipOutputStream extends GZIPOutputStream {
+    private LeveledGzipOutputStream(OutputStream out) throws IOException {
+      super(out, true);
+    }
+
+    private Deflater deflater() {
+      return def;
+    }
+  }
+}
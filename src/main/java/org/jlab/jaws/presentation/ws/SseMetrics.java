@@ -0,0 +1,149 @@
+package org.jlab.jaws.presentation.ws;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObjectBuilder;
+
+/** Counters and histograms for the /sse endpoint, reported by /sse/metrics. */
+class SseMetrics {
+  enum DisconnectReason {
+    CLIENT_CLOSED,
+    SLOW_CLIENT,
+    SEND_FAILED,
+    ERROR,
+    SHUTDOWN
+  }
+
+  private static final long[] ENCODE_MICROS_BUCKETS = {
+    10, 50, 100, 500, 1000, 5000, 10000, 50000, 100000, 500000
+  };
+  private static final long[] SNAPSHOT_MILLIS_BUCKETS = {
+    10, 50, 100, 500, 1000, 5000, 10000, 30000, 60000
+  };
+
+  final LongAdder connectionsAccepted = new LongAdder();
+  final LongAdder connectionsRejected = new LongAdder();
+  private final Map<DisconnectReason, LongAdder> disconnects =
+      new EnumMap<>(DisconnectReason.class);
+  private final Map<String, TopicMetrics> topics = new ConcurrentHashMap<>();
+
+  SseMetrics() {
+    for (DisconnectReason reason : DisconnectReason.values()) {
+      disconnects.put(reason, new LongAdder());
+    }
+  }
+
+  void disconnected(DisconnectReason reason) {
+    disconnects.get(reason).increment();
+  }
+
+  /**
+   * Record an event of encoded records.
+   *
+   * @param topic The topic (event) name
+   * @param records The number of records in the event
+   * @param chars The length of the event data (bytes for ASCII), before compression
+   * @param nanos The time spent encoding
+   */
+  void encoded(String topic, int records, int chars, long nanos) {
+    TopicMetrics m = topic(topic);
+    m.events.increment();
+    m.records.add(records);
+    m.chars.add(chars);
+    m.encodeMicros.record(nanos / 1000);
+  }
+
+  void snapshotComplete(String topic, long millis) {
+    topic(topic).snapshotMillis.record(millis);
+  }
+
+  private TopicMetrics topic(String topic) {
+    return topics.computeIfAbsent(topic, t -> new TopicMetrics());
+  }
+
+  JsonObjectBuilder toJson() {
+    JsonObjectBuilder disconnectJson = Json.createObjectBuilder();
+    for (Map.Entry<DisconnectReason, LongAdder> entry : disconnects.entrySet()) {
+      disconnectJson.add(entry.getKey().name(), entry.getValue().sum());
+    }
+
+    JsonObjectBuilder topicJson = Json.createObjectBuilder();
+    for (Map.Entry<String, TopicMetrics> entry : topics.entrySet()) {
+      TopicMetrics m = entry.getValue();
+      topicJson.add(
+          entry.getKey(),
+          Json.createObjectBuilder()
+              .add("events", m.events.sum())
+              .add("records", m.records.sum())
+              .add("chars", m.chars.sum())
+              .add("encodeMicros", m.encodeMicros.toJson())
+              .add("snapshotMillis", m.snapshotMillis.toJson()));
+    }
+
+    return Json.createObjectBuilder()
+        .add("connectionsAccepted", connectionsAccepted.sum())
+        .add("connectionsRejected", connectionsRejected.sum())
+        .add("disconnects", disconnectJson)
+        .add("topics", topicJson);
+  }
+
+  private static class TopicMetrics {
+    private final LongAdder events = new LongAdder();
+    private final LongAdder records = new LongAdder();
+    private final LongAdder chars = new LongAdder();
+    private final Histogram encodeMicros = new Histogram(ENCODE_MICROS_BUCKETS);
+    private final Histogram snapshotMillis = new Histogram(SNAPSHOT_MILLIS_BUCKETS);
+  }
+
+  /**
+   * Counts values into buckets by upper bound (inclusive), plus an overflow bucket. Reported the
+   * Prometheus way: each bucket's count includes all smaller values, so the "+Inf" bucket is the
+   * total.
+   */
+  private static class Histogram {
+    private final long[] bounds;
+    private final LongAdder[] counts;
+    private final LongAdder sum = new LongAdder();
+
+    private Histogram(long[] bounds) {
+      this.bounds = bounds;
+      this.counts = new LongAdder[bounds.length + 1];
+
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] = new LongAdder();
+      }
+    }
+
+    private void record(long value) {
+      int i = 0;
+      while (i < bounds.length && value > bounds[i]) {
+        i++;
+      }
+
+      counts[i].increment();
+      sum.add(value);
+    }
+
+    private JsonObjectBuilder toJson() {
+      JsonArrayBuilder buckets = Json.createArrayBuilder();
+      long count = 0;
+
+      for (int i = 0; i < counts.length; i++) {
+        count = count + counts[i].sum();
+        buckets.add(
+            Json.createObjectBuilder()
+                .add("le", i < bounds.length ? String.valueOf(bounds[i]) : "+Inf")
+                .add("count", count));
+      }
+
+      return Json.createObjectBuilder()
+          .add("count", count)
+          .add("sum", sum.sum())
+          .add("buckets", buckets);
+    }
+  }
+}
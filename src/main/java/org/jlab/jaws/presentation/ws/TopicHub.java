@@ -0,0 +1,254 @@
+package org.jlab.jaws.presentation.ws;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jlab.kafka.eventsource.EventSourceListener;
+import org.jlab.kafka.eventsource.EventSourceRecord;
+import org.jlab.kafka.eventsource.EventSourceTable;
+
+/**
+ * Shares a single Kafka consumer per topic among all connected SSE clients.
+ *
+ * <p>The hub keeps the compacted state of the topic in memory so that a new subscriber is handed
+ * the current snapshot (via highWaterOffset) and then joins the live tail (via batch), instead of
+ * replaying the whole topic with a consumer of its own. The consumer is created lazily on first
+ * subscription.
+ *
+ * <p>Deleted keys are retained as tombstones so that a subscriber resuming from an offset is also
+ * told about deletes it missed; a full snapshot omits them.
+ *
+ * <p>If given an active predicate the hub also maintains the subset of keys currently active,
+ * updated as each record arrives, so an active-only snapshot iterates just that (typically small)
+ * set instead of testing every key for every subscriber.
+ *
+ * <p>Subscribers are held in a copy-on-write list and each delivery iterates a snapshot of it: a
+ * subscriber may be unsubscribed while being delivered to (a slow client is evicted from inside its
+ * own batch call), which must not disturb delivery to the others. Unsubscribe doesn't take the hub
+ * lock, as a client evicted during delivery by one hub unsubscribes from the others; two hubs doing
+ * that at once would otherwise deadlock. A delivery already under way may still reach a subscriber
+ * removed concurrently.
+ *
+ * @param <K> The record key type
+ * @param <V> The record value type
+ */
+public class TopicHub<K, V> implements EventSourceListener<K, V>, AutoCloseable {
+  private static final Logger LOG = Logger.getLogger(TopicHub.class.getName());
+
+  private final String topic;
+  private final Supplier<EventSourceTable<K, V>> consumerFactory;
+  private final Predicate<V> activePredicate;
+  private final LinkedHashMap<K, EventSourceRecord<K, V>> state = new LinkedHashMap<>();
+  private final LinkedHashMap<K, EventSourceRecord<K, V>> active = new LinkedHashMap<>();
+  private final List<Subscriber<K, V>> subscribers = new CopyOnWriteArrayList<>();
+
+  private EventSourceTable<K, V> consumer = null;
+  private boolean highWaterReached = false;
+
+  /**
+   * Create a new TopicHub.
+   *
+   * @param topic The topic name (for logging)
+   * @param consumerFactory Creates the shared consumer; it must be configured with a compacted
+   *     cache and resume offset -1
+   */
+  public TopicHub(String topic, Supplier<EventSourceTable<K, V>> consumerFactory) {
+    this(topic, consumerFactory, null);
+  }
+
+  /**
+   * Create a new TopicHub that also indexes active records.
+   *
+   * @param topic The topic name (for logging)
+   * @param consumerFactory Creates the shared consumer; it must be configured with a compacted
+   *     cache and resume offset -1
+   * @param activePredicate Tests whether a (non-null) value is active, or null if the topic has no
+   *     active state
+   */
+  public TopicHub(
+      String topic,
+      Supplier<EventSourceTable<K, V>> consumerFactory,
+      Predicate<V> activePredicate) {
+    this.topic = topic;
+    this.consumerFactory = consumerFactory;
+    this.activePredicate = activePredicate;
+  }
+
+  /**
+   * Subscribe a listener. If the hub has already reached the high water mark the listener is sent
+   * the current snapshot immediately, otherwise it is sent once the high water mark is reached.
+   * Either way all later records are delivered via batch.
+   *
+   * @param listener The listener
+   * @param resumeOffset Only snapshot records (including tombstones) at or after this offset are
+   *     sent, or -1 for all current records
+   */
+  public synchronized void subscribe(EventSourceListener<K, V> listener, long resumeOffset) {
+    subscribe(new Subscriber<>(listener, resumeOffset, false));
+  }
+
+  /**
+   * Subscribe a listener that is sent only the active records as its snapshot. All later records
+   * are delivered via batch, so the listener also learns of inactivation.
+   *
+   * @param listener The listener
+   * @param resumeOffset Only active snapshot records at or after this offset are sent, or -1 for
+   *     all
+   * @throws IllegalStateException If the hub has no active predicate
+   */
+  public synchronized void subscribeActive(EventSourceListener<K, V> listener, long resumeOffset) {
+    if (activePredicate == null) {
+      throw new IllegalStateException("Topic " + topic + " has no active state");
+    }
+
+    subscribe(new Subscriber<>(listener, resumeOffset, true));
+  }
+
+  private void subscribe(Subscriber<K, V> subscriber) {
+    if (consumer == null) {
+      LOG.log(Level.INFO, "Starting shared consumer for topic {0}", topic);
+      consumer = consumerFactory.get();
+      consumer.addListener(this);
+      consumer.start();
+    }
+
+    // Added first so that unsubscribing from within the snapshot delivery (eviction) removes it
+    subscribers.add(subscriber);
+
+    if (highWaterReached && !subscriber.removed && !deliverSnapshot(subscriber)) {
+      remove(subscriber);
+    }
+  }
+
+  /**
+   * Unsubscribe a listener.
+   *
+   * @param listener The listener
+   */
+  public void unsubscribe(EventSourceListener<K, V> listener) {
+    for (Subscriber<K, V> subscriber : subscribers) {
+      if (subscriber.listener == listener) {
+        remove(subscriber);
+      }
+    }
+  }
+
+  private void remove(Subscriber<K, V> subscriber) {
+    subscriber.removed = true;
+    subscribers.remove(subscriber);
+  }
+
+  @Override
+  public synchronized void highWaterOffset(LinkedHashMap<K, EventSourceRecord<K, V>> records) {
+    for (EventSourceRecord<K, V> record : records.values()) {
+      apply(record);
+    }
+
+    highWaterReached = true;
+
+    LOG.log(
+        Level.INFO,
+        "Shared consumer for topic {0} reached highwater with {1} keys",
+        new Object[] {topic, state.size()});
+
+    for (Subscriber<K, V> subscriber : subscribers) {
+      if (!subscriber.removed && !deliverSnapshot(subscriber)) {
+        remove(subscriber);
+      }
+    }
+  }
+
+  @Override
+  public synchronized void batch(List<EventSourceRecord<K, V>> records, boolean highWaterReached) {
+    // Records before highwater are delivered compacted via highWaterOffset
+    if (!highWaterReached) {
+      return;
+    }
+
+    for (EventSourceRecord<K, V> record : records) {
+      apply(record);
+    }
+
+    for (Subscriber<K, V> subscriber : subscribers) {
+      if (subscriber.removed) {
+        continue;
+      }
+
+      try {
+        subscriber.listener.batch(records, true);
+      } catch (RuntimeException e) {
+        LOG.log(Level.WARNING, "Dropping subscriber of topic " + topic, e);
+        remove(subscriber);
+      }
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    for (Subscriber<K, V> subscriber : subscribers) {
+      subscriber.removed = true;
+    }
+    subscribers.clear();
+    state.clear();
+    active.clear();
+    highWaterReached = false;
+
+    if (consumer != null) {
+      consumer.close();
+      consumer = null;
+    }
+  }
+
+  private void apply(EventSourceRecord<K, V> record) {
+    // Remove first so the key moves to the end, keeping state in offset order
+    state.remove(record.getKey());
+    state.put(record.getKey(), record);
+
+    if (activePredicate != null) {
+      active.remove(record.getKey());
+
+      if (record.getValue() != null && activePredicate.test(record.getValue())) {
+        active.put(record.getKey(), record);
+      }
+    }
+  }
+
+  private boolean deliverSnapshot(Subscriber<K, V> subscriber) {
+    LinkedHashMap<K, EventSourceRecord<K, V>> snapshot = new LinkedHashMap<>();
+
+    for (EventSourceRecord<K, V> record : (subscriber.activeOnly ? active : state).values()) {
+      if (subscriber.resumeOffset < 0
+          ? record.getValue() != null
+          : record.getOffset() >= subscriber.resumeOffset) {
+        snapshot.put(record.getKey(), record);
+      }
+    }
+
+    try {
+      subscriber.listener.highWaterOffset(snapshot);
+      return true;
+    } catch (RuntimeException e) {
+      LOG.log(Level.WARNING, "Dropping subscriber of topic " + topic, e);
+      return false;
+    }
+  }
+
+  private static class Subscriber<K, V> {
+    private final EventSourceListener<K, V> listener;
+    private final long resumeOffset;
+    private final boolean activeOnly;
+
+    // Set once unsubscribed, so an in-progress delivery skips it
+    private volatile boolean removed = false;
+
+    private Subscriber(EventSourceListener<K, V> listener, long resumeOffset, boolean activeOnly) {
+      this.listener = listener;
+      this.resumeOffset = resumeOffset;
+      this.activeOnly = activeOnly;
+    }
+  }
+}
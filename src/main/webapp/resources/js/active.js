@@ -81,6 +81,42 @@ let toSlimAlarm = function(key, value) {
     );
 };
 
+/* Expand the compact format: positional [key, priority, system, filterable, locations, state, offset]
+   with strings as indexes into the table entries sent with each event.  A state of -1 is a tombstone
+   and a null state an alarm without a notification */
+let fromCompact = function(data) {
+    let batch = JSON.parse(data),
+        s = batch.strings,
+        records = [];
+
+    for (const r of batch.records) {
+        let value = null;
+
+        if (r[5] !== -1) {
+            value = {
+                registration: {},
+                notification: {
+                    state: r[5] === null ? undefined : s[r[5]]
+                }
+            };
+
+            if (r[1] !== null) {
+                value.registration.priority = s[r[1]];
+                value.registration.system = s[r[2]];
+                value.registration.filterable = r[3];
+            }
+
+            if (r[4] !== null) {
+                value.registration.location = r[4].map(i => s[i]);
+            }
+        }
+
+        records.push({key: r[0], value: value, offset: r[6]});
+    }
+
+    return records;
+};
+
 let toAlarm = function(key, value) {
 
     value.registration = value.registration || {};
@@ -124,7 +160,15 @@ let toAlarm = function(key, value) {
 }
 
 
-let evtSource = new EventSource(contextPath + '/proxy/sse' + '?entitiesCsv=alarm&initiallyCompactedOnly=true&slimAlarms=true');
+/* Filter on the server too so alarms outside the selected locations are never sent */
+let locationParams = '';
+for (const l of urlObject.searchParams.getAll('location')) {
+    if (l !== '') {
+        locationParams = locationParams + '&location=' + encodeURIComponent(l);
+    }
+}
+
+let evtSource = new EventSource(contextPath + '/proxy/sse' + '?entitiesCsv=alarm&initiallyCompactedOnly=true&slimAlarms=true&format=compact' + locationParams);
 
 evtSource.onerror = (err) => {
     console.error("EventSource failed:", err);
@@ -240,7 +284,7 @@ evtSource.addEventListener('alarm-highwatermark', (e) =>{
 
 evtSource.addEventListener('alarm', (e) => {
 
-    let records = JSON.parse(e.data);
+    let records = fromCompact(e.data);
 
     let remove = [];
     let updateOrAdd = [];
@@ -256,6 +300,9 @@ evtSource.addEventListener('alarm', (e) => {
         //console.log(key, value);
 
         if (value === null) {
+            allByName.delete(key);
+            normalByName.delete(key);
+            suppressedByName.delete(key);
             remove.push(key);
         } else {
             let inLocationSet = false;
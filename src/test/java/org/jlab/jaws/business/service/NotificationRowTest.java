@@ -0,0 +1,114 @@
+package org.jlab.jaws.business.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.jlab.jaws.entity.AlarmState;
+import org.jlab.jaws.entity.EffectiveNotification;
+import org.jlab.kafka.eventsource.EventSourceRecord;
+import org.junit.Test;
+
+public class NotificationRowTest {
+  private static NotificationRow row(String name, AlarmState state, long offset) {
+    EffectiveNotification value =
+        state == null ? null : new EffectiveNotification(null, null, state);
+
+    return NotificationRow.decode(new EventSourceRecord<>(name, value, offset, offset * 1000));
+  }
+
+  private static Map<String, Long> offsetsByName(List<NotificationRow> rows) {
+    Map<String, Long> offsets = new HashMap<>();
+
+    for (NotificationRow row : rows) {
+      assertNull(
+          "More than one row for " + row.getName(), offsets.put(row.getName(), row.getOffset()));
+    }
+
+    return offsets;
+  }
+
+  @Test
+  public void latestPerNameKeepsLastRowOfEachName() {
+    List<NotificationRow> rows =
+        List.of(
+            row("alarm1", AlarmState.Active, 0),
+            row("alarm2", AlarmState.Active, 1),
+            row("alarm1", AlarmState.Normal, 2),
+            row("alarm1", null, 3),
+            row("alarm2", AlarmState.Normal, 4));
+
+    List<NotificationRow> latest = NotificationRow.latestPerName(rows);
+
+    assertEquals(Map.of("alarm1", 3L, "alarm2", 4L), offsetsByName(latest));
+  }
+
+  @Test
+  public void latestPerNameReturnsRowsWhenNoNameRepeats() {
+    List<NotificationRow> rows =
+        List.of(row("alarm1", AlarmState.Active, 0), row("alarm2", AlarmState.Normal, 1));
+
+    assertSame(rows, NotificationRow.latestPerName(rows));
+  }
+
+  @Test
+  public void tombstoneHasNoColumns() {
+    NotificationRow tombstone = row("alarm1", null, 0);
+
+    assertTrue(tombstone.isTombstone());
+    assertNull(tombstone.getState());
+    assertNull(tombstone.getActivationType());
+
+    NotificationRow active = row("alarm1", AlarmState.Active, 1);
+
+    assertFalse(active.isTombstone());
+    assertEquals("Active", active.getState());
+    assertEquals("NotActive", active.getActivationType());
+  }
+
+  @Test
+  public void withoutTombstonesKeepsOrder() {
+    List<NotificationRow> rows =
+        List.of(
+            row("alarm1", AlarmState.Active, 0),
+            row("alarm2", null, 1),
+            row("alarm3", AlarmState.Normal, 2),
+            row("alarm4", null, 3),
+            row("alarm5", AlarmState.Active, 4));
+
+    List<NotificationRow> values = NotificationRow.withoutTombstones(rows);
+
+    assertEquals(3, values.size());
+    assertEquals("alarm1", values.get(0).getName());
+    assertEquals("alarm3", values.get(1).getName());
+    assertEquals("alarm5", values.get(2).getName());
+  }
+
+  @Test
+  public void withoutTombstonesReturnsRowsWhenThereAreNone() {
+    List<NotificationRow> rows =
+        List.of(row("alarm1", AlarmState.Active, 0), row("alarm2", AlarmState.Normal, 1));
+
+    assertSame(rows, NotificationRow.withoutTombstones(rows));
+  }
+
+  @Test
+  public void latestTombstoneIsDroppedAfterCollapse() {
+    // How a batch reaches the NOTIFICATION merge: an alarm removed in the batch leaves no row
+    List<NotificationRow> rows =
+        List.of(
+            row("alarm1", AlarmState.Active, 0),
+            row("alarm2", AlarmState.Active, 1),
+            row("alarm1", null, 2));
+
+    List<NotificationRow> merged =
+        NotificationRow.withoutTombstones(NotificationRow.latestPerName(rows));
+
+    assertEquals(Map.of("alarm2", 1L), offsetsByName(merged));
+  }
+}
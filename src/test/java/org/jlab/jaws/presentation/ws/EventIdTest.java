@@ -0,0 +1,48 @@
+package org.jlab.jaws.presentation.ws;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import org.junit.Test;
+
+public class EventIdTest {
+  @Test
+  public void parsesEachTopic() {
+    Map<String, Long> offsets = SSE.parseEventId("a1520,c2,s3,t4,i5,l6,n1533,o7,r8");
+
+    assertEquals(9, offsets.size());
+    assertEquals(Long.valueOf(1520), offsets.get("alarm"));
+    assertEquals(Long.valueOf(2), offsets.get("activation"));
+    assertEquals(Long.valueOf(3), offsets.get("system"));
+    assertEquals(Long.valueOf(4), offsets.get("action"));
+    assertEquals(Long.valueOf(5), offsets.get("instance"));
+    assertEquals(Long.valueOf(6), offsets.get("location"));
+    assertEquals(Long.valueOf(1533), offsets.get("notification"));
+    assertEquals(Long.valueOf(7), offsets.get("override"));
+    assertEquals(Long.valueOf(8), offsets.get("registration"));
+  }
+
+  @Test
+  public void missingIdResumesNothing() {
+    assertTrue(SSE.parseEventId(null).isEmpty());
+    assertTrue(SSE.parseEventId("").isEmpty());
+    assertTrue(SSE.parseEventId("  ").isEmpty());
+  }
+
+  @Test
+  public void malformedTokensAreIgnored() {
+    Map<String, Long> offsets = SSE.parseEventId("a,x12,nabc,s9,r-");
+
+    assertEquals(Map.of("system", 9L), offsets);
+  }
+
+  @Test
+  public void onlyListedTopicsResume() {
+    // A topic the client had no events from yet is replayed in full (the caller's default of -1)
+    Map<String, Long> offsets = SSE.parseEventId("n42");
+
+    assertEquals(Long.valueOf(42), offsets.get("notification"));
+    assertEquals(-1L, (long) offsets.getOrDefault("alarm", -1L));
+  }
+}
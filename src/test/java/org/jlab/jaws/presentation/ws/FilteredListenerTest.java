@@ -0,0 +1,98 @@
+package org.jlab.jaws.presentation.ws;
+
+import static org.jlab.jaws.presentation.ws.RecordingListener.record;
+import static org.jlab.jaws.presentation.ws.RecordingListener.snapshot;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.jlab.kafka.eventsource.EventSourceRecord;
+import org.junit.Test;
+
+public class FilteredListenerTest {
+  private static List<String> keys(List<EventSourceRecord<String, String>> records) {
+    List<String> keys = new ArrayList<>();
+
+    for (EventSourceRecord<String, String> record : records) {
+      keys.add(record.getKey());
+    }
+
+    return keys;
+  }
+
+  private static SSE.FilteredListener<String, String> filter(
+      RecordingListener<String, String> delegate, boolean resumed) {
+    return new SSE.FilteredListener<>(delegate, value -> value.startsWith("RF"), resumed);
+  }
+
+  @Test
+  public void snapshotHasOnlyMatches() {
+    RecordingListener<String, String> delegate = new RecordingListener<>();
+
+    filter(delegate, false)
+        .highWaterOffset(
+            snapshot(record("a", "RF1", 0), record("b", "Magnets", 1), record("c", "RF2", 2)));
+
+    assertEquals(List.of("a", "c"), new ArrayList<>(delegate.lastSnapshot().keySet()));
+  }
+
+  @Test
+  public void keyLeavingFilterBecomesTombstone() {
+    RecordingListener<String, String> delegate = new RecordingListener<>();
+    SSE.FilteredListener<String, String> listener = filter(delegate, false);
+
+    listener.highWaterOffset(snapshot(record("a", "RF1", 0)));
+    listener.batch(List.of(record("a", "Magnets", 1), record("b", "Magnets", 2)), true);
+
+    // The client holds "a", so it's told to drop it; it never had "b"
+    assertEquals(List.of("a"), keys(delegate.lastBatch()));
+    assertNull(delegate.lastBatch().get(0).getValue());
+    assertEquals(1, delegate.lastBatch().get(0).getOffset());
+
+    // Only sent once; the client no longer holds it
+    listener.batch(List.of(record("a", "Magnets", 3)), true);
+
+    assertEquals(1, delegate.batches.size());
+  }
+
+  @Test
+  public void deletedKeyIsPassedOnOnlyIfSent() {
+    RecordingListener<String, String> delegate = new RecordingListener<>();
+    SSE.FilteredListener<String, String> listener = filter(delegate, false);
+
+    listener.highWaterOffset(snapshot(record("a", "RF1", 0), record("b", "Magnets", 1)));
+    listener.batch(List.of(record("a", null, 2), record("b", null, 3)), true);
+
+    assertEquals(List.of("a"), keys(delegate.lastBatch()));
+    assertNull(delegate.lastBatch().get(0).getValue());
+  }
+
+  @Test
+  public void resumedClientGetsTombstonesForUnmatchedKeys() {
+    RecordingListener<String, String> delegate = new RecordingListener<>();
+    SSE.FilteredListener<String, String> listener = filter(delegate, true);
+
+    // A resumed client may hold keys from before the reconnect that no longer match
+    listener.highWaterOffset(snapshot(record("a", "RF1", 5), record("b", "Magnets", 6)));
+
+    assertEquals(List.of("a", "b"), new ArrayList<>(delegate.lastSnapshot().keySet()));
+    assertEquals("RF1", delegate.lastSnapshot().get("a").getValue());
+    assertNull(delegate.lastSnapshot().get("b").getValue());
+
+    listener.batch(List.of(record("c", "Magnets", 7)), true);
+
+    assertEquals(List.of("c"), keys(delegate.lastBatch()));
+    assertNull(delegate.lastBatch().get(0).getValue());
+  }
+
+  @Test
+  public void emptyBatchIsNotPassedOn() {
+    RecordingListener<String, String> delegate = new RecordingListener<>();
+
+    filter(delegate, false).batch(List.of(record("a", "Magnets", 0)), true);
+
+    assertTrue(delegate.batches.isEmpty());
+  }
+}
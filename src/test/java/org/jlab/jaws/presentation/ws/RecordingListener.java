@@ -0,0 +1,47 @@
+package org.jlab.jaws.presentation.ws;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import org.jlab.kafka.eventsource.EventSourceListener;
+import org.jlab.kafka.eventsource.EventSourceRecord;
+
+/** Keeps every snapshot and batch it's sent, for tests of listeners and hubs. */
+class RecordingListener<K, V> implements EventSourceListener<K, V> {
+  final List<LinkedHashMap<K, EventSourceRecord<K, V>>> snapshots = new ArrayList<>();
+  final List<List<EventSourceRecord<K, V>>> batches = new ArrayList<>();
+
+  @Override
+  public void highWaterOffset(LinkedHashMap<K, EventSourceRecord<K, V>> records) {
+    snapshots.add(new LinkedHashMap<>(records));
+  }
+
+  @Override
+  public void batch(List<EventSourceRecord<K, V>> records, boolean highWaterReached) {
+    batches.add(new ArrayList<>(records));
+  }
+
+  LinkedHashMap<K, EventSourceRecord<K, V>> lastSnapshot() {
+    return snapshots.get(snapshots.size() - 1);
+  }
+
+  List<EventSourceRecord<K, V>> lastBatch() {
+    return batches.get(batches.size() - 1);
+  }
+
+  static <K, V> EventSourceRecord<K, V> record(K key, V value, long offset) {
+    return new EventSourceRecord<>(key, value, offset, offset * 1000);
+  }
+
+  @SafeVarargs
+  static <K, V> LinkedHashMap<K, EventSourceRecord<K, V>> snapshot(
+      EventSourceRecord<K, V>... records) {
+    LinkedHashMap<K, EventSourceRecord<K, V>> map = new LinkedHashMap<>();
+
+    for (EventSourceRecord<K, V> record : records) {
+      map.put(record.getKey(), record);
+    }
+
+    return map;
+  }
+}
@@ -0,0 +1,274 @@
+package org.jlab.jaws.presentation.ws;
+
+import static org.jlab.jaws.presentation.ws.RecordingListener.record;
+import static org.jlab.jaws.presentation.ws.RecordingListener.snapshot;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
+import org.jlab.jaws.clients.SystemConsumer;
+import org.jlab.jaws.entity.AlarmSystem;
+import org.jlab.kafka.eventsource.EventSourceConfig;
+import org.jlab.kafka.eventsource.EventSourceRecord;
+import org.junit.Test;
+
+public class TopicHubTest {
+  private static final AlarmSystem ACTIVE = new AlarmSystem();
+  private static final AlarmSystem INACTIVE = new AlarmSystem();
+
+  // Records are handed to the hub directly, so the consumer is never started
+  private static SystemConsumer idleConsumer() {
+    Properties props = new Properties();
+    props.put(EventSourceConfig.GROUP_ID_CONFIG, "topic-hub-test");
+    props.put(EventSourceConfig.BOOTSTRAP_SERVERS_CONFIG, "localhost:9092");
+    props.put(EventSourceConfig.RESUME_OFFSET_CONFIG, -1L);
+    props.put(EventSourceConfig.COMPACTED_CACHE_CONFIG, true);
+
+    return new SystemConsumer(props) {
+      @Override
+      public void start() {}
+
+      @Override
+      public void close() {}
+    };
+  }
+
+  private static TopicHub<String, AlarmSystem> hub(Predicate<AlarmSystem> activePredicate) {
+    return new TopicHub<>("system", TopicHubTest::idleConsumer, activePredicate);
+  }
+
+  private static List<String> keys(LinkedHashMap<String, ?> snapshot) {
+    return new ArrayList<>(snapshot.keySet());
+  }
+
+  @Test
+  public void snapshotThenTail() {
+    TopicHub<String, AlarmSystem> hub = hub(null);
+    RecordingListener<String, AlarmSystem> listener = new RecordingListener<>();
+
+    hub.subscribe(listener, -1);
+
+    // Records before highwater arrive compacted in the snapshot, not as batches
+    hub.batch(List.of(record("a", ACTIVE, 0)), false);
+
+    assertTrue(listener.snapshots.isEmpty());
+    assertTrue(listener.batches.isEmpty());
+
+    hub.highWaterOffset(snapshot(record("a", ACTIVE, 0), record("b", ACTIVE, 1)));
+
+    assertEquals(List.of("a", "b"), keys(listener.lastSnapshot()));
+
+    hub.batch(List.of(record("c", ACTIVE, 2)), true);
+
+    assertEquals(1, listener.batches.size());
+    assertEquals("c", listener.lastBatch().get(0).getKey());
+
+    hub.close();
+  }
+
+  @Test
+  public void lateSubscriberGetsCurrentStateInOffsetOrder() {
+    TopicHub<String, AlarmSystem> hub = hub(null);
+    hub.subscribe(new RecordingListener<>(), -1);
+
+    hub.highWaterOffset(snapshot(record("a", ACTIVE, 0), record("b", ACTIVE, 1)));
+    hub.batch(List.of(record("a", INACTIVE, 2)), true);
+
+    RecordingListener<String, AlarmSystem> late = new RecordingListener<>();
+    hub.subscribe(late, -1);
+
+    assertEquals(1, late.snapshots.size());
+    assertEquals(List.of("b", "a"), keys(late.lastSnapshot()));
+    assertEquals(INACTIVE, late.lastSnapshot().get("a").getValue());
+    assertTrue(late.batches.isEmpty());
+
+    hub.close();
+  }
+
+  @Test
+  public void resumeSnapshotIncludesTombstones() {
+    TopicHub<String, AlarmSystem> hub = hub(null);
+    hub.subscribe(new RecordingListener<>(), -1);
+
+    hub.highWaterOffset(snapshot(record("a", ACTIVE, 0), record("b", ACTIVE, 1)));
+    hub.batch(List.of(record("b", null, 2), record("c", ACTIVE, 3)), true);
+
+    RecordingListener<String, AlarmSystem> full = new RecordingListener<>();
+    hub.subscribe(full, -1);
+
+    assertEquals(List.of("a", "c"), keys(full.lastSnapshot()));
+
+    RecordingListener<String, AlarmSystem> resumed = new RecordingListener<>();
+    hub.subscribe(resumed, 2);
+
+    assertEquals(List.of("b", "c"), keys(resumed.lastSnapshot()));
+    assertNull(resumed.lastSnapshot().get("b").getValue());
+
+    hub.close();
+  }
+
+  @Test
+  public void activeSnapshotFollowsActivePredicate() {
+    TopicHub<String, AlarmSystem> hub = hub(value -> value == ACTIVE);
+    hub.subscribe(new RecordingListener<>(), -1);
+
+    hub.highWaterOffset(snapshot(record("a", ACTIVE, 0), record("b", INACTIVE, 1)));
+    hub.batch(List.of(record("a", INACTIVE, 2), record("c", ACTIVE, 3)), true);
+
+    RecordingListener<String, AlarmSystem> listener = new RecordingListener<>();
+    hub.subscribeActive(listener, -1);
+
+    assertEquals(List.of("c"), keys(listener.lastSnapshot()));
+
+    hub.close();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void subscribeActiveWithoutPredicate() {
+    hub(null).subscribeActive(new RecordingListener<>(), -1);
+  }
+
+  @Test
+  public void evictionDuringBatchDoesNotDisturbOthers() {
+    TopicHub<String, AlarmSystem> hub = hub(null);
+
+    // Unsubscribes itself from inside its own batch call, as a slow SSE client is evicted
+    RecordingListener<String, AlarmSystem> evicted =
+        new RecordingListener<>() {
+          @Override
+          public void batch(List<EventSourceRecord<String, AlarmSystem>> records, boolean hw) {
+            super.batch(records, hw);
+            hub.unsubscribe(this);
+          }
+        };
+    RecordingListener<String, AlarmSystem> other = new RecordingListener<>();
+
+    hub.subscribe(evicted, -1);
+    hub.subscribe(other, -1);
+    hub.highWaterOffset(snapshot(record("a", ACTIVE, 0)));
+
+    hub.batch(List.of(record("b", ACTIVE, 1)), true);
+    hub.batch(List.of(record("c", ACTIVE, 2)), true);
+
+    assertEquals(1, evicted.batches.size());
+    assertEquals(2, other.batches.size());
+
+    hub.close();
+  }
+
+  /** Evicts its client, as a slow SSE client is: unsubscribing from every hub it's on. */
+  private static class EvictingListener extends RecordingListener<String, AlarmSystem> {
+    private final CyclicBarrier barrier;
+    private final List<TopicHub<String, AlarmSystem>> hubs = new ArrayList<>();
+    private final List<RecordingListener<String, AlarmSystem>> listeners = new ArrayList<>();
+
+    private EvictingListener(CyclicBarrier barrier) {
+      this.barrier = barrier;
+    }
+
+    private void on(
+        TopicHub<String, AlarmSystem> hub, RecordingListener<String, AlarmSystem> listener) {
+      hubs.add(hub);
+      listeners.add(listener);
+    }
+
+    @Override
+    public void batch(List<EventSourceRecord<String, AlarmSystem>> records, boolean hw) {
+      super.batch(records, hw);
+
+      try {
+        // Both hubs are then delivering, each holding its own lock
+        barrier.await(5, TimeUnit.SECONDS);
+      } catch (InterruptedException | BrokenBarrierException | TimeoutException e) {
+        throw new IllegalStateException(e);
+      }
+
+      for (int i = 0; i < hubs.size(); i++) {
+        hubs.get(i).unsubscribe(listeners.get(i));
+      }
+    }
+  }
+
+  @Test
+  public void crossSubscribedEvictionsDoNotDeadlock() throws InterruptedException {
+    TopicHub<String, AlarmSystem> first = hub(null);
+    TopicHub<String, AlarmSystem> second = hub(null);
+    CyclicBarrier barrier = new CyclicBarrier(2);
+
+    // Each client is evicted by one hub while that hub delivers, and is also on the other
+    EvictingListener evictedByFirst = new EvictingListener(barrier);
+    RecordingListener<String, AlarmSystem> evictedByFirstOnSecond = new RecordingListener<>();
+    evictedByFirst.on(first, evictedByFirst);
+    evictedByFirst.on(second, evictedByFirstOnSecond);
+
+    EvictingListener evictedBySecond = new EvictingListener(barrier);
+    RecordingListener<String, AlarmSystem> evictedBySecondOnFirst = new RecordingListener<>();
+    evictedBySecond.on(second, evictedBySecond);
+    evictedBySecond.on(first, evictedBySecondOnFirst);
+
+    first.subscribe(evictedByFirst, -1);
+    first.subscribe(evictedBySecondOnFirst, -1);
+    second.subscribe(evictedBySecond, -1);
+    second.subscribe(evictedByFirstOnSecond, -1);
+    first.highWaterOffset(snapshot(record("a", ACTIVE, 0)));
+    second.highWaterOffset(snapshot(record("a", ACTIVE, 0)));
+
+    Thread firstDelivery = new Thread(() -> first.batch(List.of(record("b", ACTIVE, 1)), true));
+    Thread secondDelivery = new Thread(() -> second.batch(List.of(record("b", ACTIVE, 1)), true));
+    firstDelivery.setDaemon(true);
+    secondDelivery.setDaemon(true);
+
+    firstDelivery.start();
+    secondDelivery.start();
+    firstDelivery.join(10_000);
+    secondDelivery.join(10_000);
+
+    assertFalse("Hub deliveries deadlocked", firstDelivery.isAlive() || secondDelivery.isAlive());
+
+    first.batch(List.of(record("c", ACTIVE, 2)), true);
+    second.batch(List.of(record("c", ACTIVE, 2)), true);
+
+    assertEquals(1, evictedByFirst.batches.size());
+    assertEquals(1, evictedBySecond.batches.size());
+    assertTrue(evictedByFirstOnSecond.batches.size() <= 1);
+    assertTrue(evictedBySecondOnFirst.batches.size() <= 1);
+
+    first.close();
+    second.close();
+  }
+
+  @Test
+  public void failingSubscriberIsDropped() {
+    TopicHub<String, AlarmSystem> hub = hub(null);
+    hub.subscribe(new RecordingListener<>(), -1);
+    hub.highWaterOffset(snapshot(record("a", ACTIVE, 0)));
+
+    RecordingListener<String, AlarmSystem> failing =
+        new RecordingListener<>() {
+          @Override
+          public void highWaterOffset(
+              LinkedHashMap<String, EventSourceRecord<String, AlarmSystem>> records) {
+            super.highWaterOffset(records);
+            throw new IllegalStateException("Client gone");
+          }
+        };
+
+    hub.subscribe(failing, -1);
+    hub.batch(List.of(record("b", ACTIVE, 1)), true);
+
+    assertEquals(1, failing.snapshots.size());
+    assertTrue(failing.batches.isEmpty());
+
+    hub.close();
+  }
+}